@@ -27,6 +27,7 @@ public class ConnectionContext {
     private HashMap<Integer, BufferedReader> inputReaderHash = new HashMap<>();
     private HashMap<Integer, PrintWriter> outputWriterHash = new HashMap<>();
     private ServerSocket serverSocket;
+    private final ServerConnectionPool serverConnectionPool = new ServerConnectionPool();
     private static int port = 24942; // Communication port for the whole system
     private int MAX_PROCESSES = 5;
 
@@ -136,6 +137,15 @@ public class ConnectionContext {
         outputWriterHash.put(nodeId, outputWriter);
     }
 
+    /**
+     * Pool of connections to the RingStore servers
+     * 
+     * @return
+     */
+    public ServerConnectionPool getServerConnectionPool() {
+        return serverConnectionPool;
+    }
+
     /**
      * Creates the socket server for the communication.
      * Specifies an OS buffer size of 10 connections so as to not lose connection
@@ -159,6 +169,7 @@ public class ConnectionContext {
         for (Map.Entry<Integer, Socket> entry : connectionHash.entrySet()) {
             entry.getValue().close();
         }
+        serverConnectionPool.close();
         // Shutting down the server
         serverSocket.close();
     }
@@ -0,0 +1,97 @@
+package Client;
+
+import java.util.Arrays;
+
+/**
+ * When to hedge a read and whether the budget allows it, for
+ * -Dringstore.hedgedReads=true.
+ *
+ * A read is hedged, sent to a second replica as well, once it has been waiting
+ * longer than the ringstore.hedgePercentile (95th by default) percentile of
+ * the last SAMPLES read latencies. Nothing is hedged before MIN_SAMPLES reads
+ * were measured.
+ *
+ * Every read adds ringstore.hedgeBudgetPercent / 100 (10% by default) of a
+ * hedge to the budget, which holds at most ringstore.hedgeBurst (10) hedges,
+ * and every hedge takes one. Hedges therefore add at most that share of extra
+ * reads, even when a slow cluster pushes every read past the delay.
+ */
+public class HedgePolicy {
+    private static final int SAMPLES = 1024;
+    private static final int MIN_SAMPLES = 100;
+    // Recompute the delay after this many new samples
+    private static final int RECOMPUTE_EVERY = 64;
+    private static final double PERCENTILE = Double.parseDouble(System.getProperty("ringstore.hedgePercentile",
+            "95"));
+    private static final double BUDGET = Double.parseDouble(System.getProperty("ringstore.hedgeBudgetPercent",
+            "10")) / 100.0;
+    private static final double BURST = Integer.getInteger("ringstore.hedgeBurst", 10);
+
+    private final long[] latencies = new long[SAMPLES];
+    private long samples;
+    private long delayNanos = -1;
+    private double budget;
+    private long reads;
+    private long hedges;
+    private long hedgeWins;
+    private long denied;
+
+    /**
+     * Records the latency of a read that was answered
+     *
+     * @param nanos
+     */
+    public synchronized void record(long nanos) {
+        latencies[(int) (samples % SAMPLES)] = nanos;
+        samples++;
+        if (samples >= MIN_SAMPLES && (delayNanos < 0 || samples % RECOMPUTE_EVERY == 0)) {
+            long[] sorted = Arrays.copyOf(latencies, (int) Math.min(samples, SAMPLES));
+            Arrays.sort(sorted);
+            delayNanos = sorted[Math.min(sorted.length - 1, (int) (sorted.length * PERCENTILE / 100.0))];
+        }
+    }
+
+    /**
+     * Counts a read and adds its share to the hedge budget
+     *
+     * @return how long to wait before hedging it, -1 to not hedge it
+     */
+    public synchronized long startRead() {
+        reads++;
+        budget = Math.min(BURST, budget + BUDGET);
+        return delayNanos;
+    }
+
+    /**
+     * Takes a hedge from the budget
+     *
+     * @return false if the budget is spent
+     */
+    public synchronized boolean tryHedge() {
+        if (budget < 1) {
+            denied++;
+            return false;
+        }
+        budget -= 1;
+        hedges++;
+        return true;
+    }
+
+    /**
+     * Counts a hedge that answered before the read it hedged
+     */
+    public synchronized void hedgeWon() {
+        hedgeWins++;
+    }
+
+    /**
+     * Hedging counters
+     *
+     * @return
+     */
+    public synchronized String getStats() {
+        return String.format("Hedged reads: %d reads, %d hedged (%.1f%%), %d hedges answered first, "
+                + "%d over budget, delay %.1f us", reads, hedges, (reads == 0) ? 0.0 : 100.0 * hedges / reads,
+                hedgeWins, denied, delayNanos / 1000.0);
+    }
+}
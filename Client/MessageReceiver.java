@@ -2,14 +2,22 @@ package Client;
 
 import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InterruptedIOException;
 import java.net.InetAddress;
-import java.net.Socket;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import java.text.SimpleDateFormat;
 /**
@@ -30,8 +38,45 @@ public class MessageReceiver extends Thread {
     private MessageQueue messageQueue;
     private ConnectionContext connectionContext;
     private Map<Integer, String> serverMap;
+    // Keep many requests in flight on one connection per server (-Dringstore.pipeline=true)
+    private static final boolean PIPELINED = Boolean.getBoolean("ringstore.pipeline");
+    private final Map<Integer, PipelinedConnection> pipelinedConnections = new HashMap<>();
+    // A server with a full write queue answers "BUSY <millis>", the write is sent
+    // again after that delay at most ringstore.busyRetries times. Pipelined
+    // requests are sent again from this thread, never from a reply reader
+    private static final String BUSY_REPLY = "BUSY";
+    private static final String ERROR_REPLY = "ERROR";
+    private static final int BUSY_RETRIES = Integer.getInteger("ringstore.busyRetries", 50);
+    private static final ScheduledExecutorService RETRY_SCHEDULER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "busy-retries");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    private final AtomicLong busyReplies = new AtomicLong();
+    // -Dringstore.writeMode=commit sends writes as commit writes (S), answered
+    // once the write is on all replicas rather than when it is queued
+    private static final boolean COMMIT_WRITES = "commit".equalsIgnoreCase(
+            System.getProperty("ringstore.writeMode", "ack"));
+    // Reads go to the replica expected to answer first
+    private final ReplicaSelector replicaSelector = new ReplicaSelector();
+    // -Dringstore.hedgedReads=true sends a read that is slow to answer to a
+    // second replica as well, see HedgePolicy
+    private static final boolean HEDGED_READS = Boolean.getBoolean("ringstore.hedgedReads");
+    private static final ExecutorService HEDGE_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "hedged-reads");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final HedgePolicy hedgePolicy = new HedgePolicy();
 
-    private int hashToServer(String key) {
+    static int hashToServer(String key) {
     int[] serverIds = {6, 7, 8, 9, 10, 11, 12};
     return serverIds[Math.abs(key.hashCode()) % serverIds.length];
 }
@@ -110,28 +155,39 @@ public class MessageReceiver extends Thread {
             serverMap = getServerIdToIpMap();
             int port = connectionContext.getPort();
             boolean sent = false;
+            // Writes carry the number the sequencer gave them within their primary
 
-            if (message.getType() == Message.MessageType.W) {
+            if (PIPELINED) {
+                if (message.getType() == Message.MessageType.W) {
+                    sendPipelined(serverIds, 0, 0, port, message, primary);
+                } else if (message.getType() == Message.MessageType.R) {
+                    sendReadPipelined(serverIds, 0, port, message, primary);
+                }
+                // Failures are reported when the replies arrive
+                sent = true;
+            } else if (message.getType() == Message.MessageType.W) {
                 // Sequentially attempt to send to each server
                 for (int targetId : serverIds) {
-                    sent = sendToServer(targetId, port, message, primary);
+                    sent = sendToServer(targetId, new int[0], port, message, primary);
                     if (sent) {
                         break; // stop after first successful send
                     }
                 }    
             } else if (message.getType() == Message.MessageType.R) {
-                // Attempt to randomly read from a server
-                Random rand = new Random();
-                int randomReadServer = serverIds[rand.nextInt(serverIds.length)];
-                sendToServer(randomReadServer, port, message, primary);
-                sent = true;
-            }       
+                sent = readFromReplicas(serverIds, port, message, primary);
+            }
 
             if (!sent) {
                 System.err.println("ERROR: Could not send to any of the 3 replica servers.");
             }
         }
-}
+        System.out.println(connectionContext.getServerConnectionPool().getStats());
+        System.out.println(busyReplies.get() + " writes sent again after a BUSY reply");
+        System.out.println(replicaSelector.getStats());
+        if (HEDGED_READS) {
+            System.out.println(hedgePolicy.getStats());
+        }
+    }
 
     /**
      * Method to process only non-sequencer messages on a non-sequencer node.
@@ -161,31 +217,305 @@ public class MessageReceiver extends Thread {
         messageQueue.addMessageToQueue(messageReceived);
     }
 
-    private boolean sendToServer(int targetId, int port, Message message, int primary) {
+    /**
+     * Sends a message over the pipelined connection to a replica without
+     * waiting for the reply. A write refused by that replica is passed on to the
+     * next one when the reply arrives, a write the replica is too busy for is
+     * sent to it again after the delay it asks for. A write that was sent but
+     * never answered is reported and not passed on, the replica may have
+     * applied it.
+     *
+     * @param serverIds replicas to try in order
+     * @param attempt index of the replica to try
+     * @param busyRetries times the write was already refused as busy
+     * @param port
+     * @param message
+     * @param primary
+     */
+    private void sendPipelined(final int[] serverIds, final int attempt, final int busyRetries, final int port,
+            final Message message, final int primary) {
+        if (attempt >= serverIds.length) {
+            System.err.println("ERROR: Could not send to any of the 3 replica servers.");
+            return;
+        }
+        final int targetId = serverIds[attempt];
+        PipelinedConnection connection = getPipelinedConnection(targetId, port);
+        if (connection == null) {
+            sendPipelined(serverIds, attempt + 1, 0, port, message, primary);
+            return;
+        }
+        String finalPayload = getRequestType(message) + "," + message.getSeqNo() + "," + (primary - 6) + "," + message.getMsgContent();
+        try {
+            connection.send(finalPayload, new PipelinedConnection.ReplyListener() {
+                @Override
+                public void onReply(String response) {
+                    if (message.getType() == Message.MessageType.R) {
+                        System.out.println("Server Response from " + (primary - 6) + ": " + response);
+                    } else if (response.equals("NACK")) {
+                        // Server is down, try the next replica
+                        retryPipelined(serverIds, attempt + 1, port, message, primary);
+                    } else if (response.startsWith(ERROR_REPLY)) {
+                        // Refused for good, another replica must not apply it either
+                        System.err.println("Server " + (targetId - 6) + " refused write: " + response);
+                    } else if (response.startsWith(BUSY_REPLY)) {
+                        if (busyRetries >= BUSY_RETRIES) {
+                            System.err.println("ERROR: Server " + (targetId - 6) + " stayed busy, write dropped");
+                            return;
+                        }
+                        busyReplies.incrementAndGet();
+                        RETRY_SCHEDULER.schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                sendPipelined(serverIds, attempt, busyRetries + 1, port, message, primary);
+                            }
+                        }, getRetryDelay(response), TimeUnit.MILLISECONDS);
+                    } else {
+                        System.out.println("Sent to Server " + (targetId - 6) + " @ " + serverMap.get(targetId)
+                                + (COMMIT_WRITES ? ": " + response : ""));
+                    }
+                }
+
+                @Override
+                public void onFailure(IOException e) {
+                    if (e instanceof OutcomeUnknownException) {
+                        reportOutcomeUnknown(targetId, e);
+                        return;
+                    }
+                    System.err.println("Failed request to Server " + targetId + ": " + e.getMessage());
+                    retryPipelined(serverIds, attempt + 1, port, message, primary);
+                }
+            });
+        } catch (OutcomeUnknownException e) {
+            reportOutcomeUnknown(targetId, e);
+        } catch (IOException e) {
+            System.err.println("Failed to connect to Server " + targetId + " (" + serverMap.get(targetId) + ")");
+            sendPipelined(serverIds, attempt + 1, 0, port, message, primary);
+        }
+    }
+
+    /**
+     * Reports a write that was sent and not answered. The server may have
+     * applied it, so another replica must not get it as well.
+     */
+    private static void reportOutcomeUnknown(int targetId, IOException e) {
+        System.err.println("ERROR: Server " + (targetId - 6) + " did not answer a write, outcome unknown: "
+                + e.getMessage());
+    }
+
+    /**
+     * Sends a write to the next replica from the retry thread. Replies arrive on
+     * the reader thread of a connection, which must not block on the window of
+     * another connection whose reader may be doing the same.
+     */
+    private void retryPipelined(final int[] serverIds, final int attempt, final int port, final Message message,
+            final int primary) {
+        RETRY_SCHEDULER.execute(new Runnable() {
+            @Override
+            public void run() {
+                sendPipelined(serverIds, attempt, 0, port, message, primary);
+            }
+        });
+    }
+
+    /**
+     * Sends a read to the remaining replicas from the retry thread, see
+     * retryPipelined
+     */
+    private void retryReadPipelined(final int[] candidates, final int port, final Message message,
+            final int primary) {
+        RETRY_SCHEDULER.execute(new Runnable() {
+            @Override
+            public void run() {
+                sendReadPipelined(candidates, 0, port, message, primary);
+            }
+        });
+    }
+
+    /**
+     * Sends a read over the pipelined connection to the replica picked by the
+     * replica selector. A replica that refuses it is left out and the read is
+     * sent to the next pick, a busy replica gets it again after the delay it
+     * asks for.
+     *
+     * @param candidates replicas not tried yet
+     * @param busyRetries times the read was already answered busy
+     * @param port
+     * @param message
+     * @param primary
+     */
+    private void sendReadPipelined(final int[] candidates, final int busyRetries, final int port,
+            final Message message, final int primary) {
+        if (candidates.length == 0) {
+            System.err.println("ERROR: Could not send to any of the 3 replica servers.");
+            return;
+        }
+        final int targetId = replicaSelector.choose(candidates);
+        PipelinedConnection connection = getPipelinedConnection(targetId, port);
+        if (connection == null) {
+            replicaSelector.complete(targetId, replicaSelector.begin(targetId), null);
+            sendReadPipelined(without(candidates, targetId), 0, port, message, primary);
+            return;
+        }
+        String finalPayload = "R," + message.getSeqNo() + "," + (primary - 6) + "," + message.getMsgContent();
+        final long start = replicaSelector.begin(targetId);
+        try {
+            connection.send(finalPayload, new PipelinedConnection.ReplyListener() {
+                @Override
+                public void onReply(String response) {
+                    replicaSelector.complete(targetId, start, response);
+                    if (response.equals("NACK")) {
+                        retryReadPipelined(without(candidates, targetId), port, message, primary);
+                    } else if (response.startsWith(BUSY_REPLY) && busyRetries < BUSY_RETRIES) {
+                        busyReplies.incrementAndGet();
+                        RETRY_SCHEDULER.schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                sendReadPipelined(candidates, busyRetries + 1, port, message, primary);
+                            }
+                        }, getRetryDelay(response), TimeUnit.MILLISECONDS);
+                    } else {
+                        System.out.println("Server Response from " + (primary - 6) + ": " + response);
+                    }
+                }
+
+                @Override
+                public void onFailure(IOException e) {
+                    replicaSelector.complete(targetId, start, null);
+                    System.err.println("Failed request to Server " + targetId + ": " + e.getMessage());
+                    retryReadPipelined(without(candidates, targetId), port, message, primary);
+                }
+            });
+        } catch (IOException e) {
+            replicaSelector.complete(targetId, start, null);
+            System.err.println("Failed to connect to Server " + targetId + " (" + serverMap.get(targetId) + ")");
+            sendReadPipelined(without(candidates, targetId), 0, port, message, primary);
+        }
+    }
+
+    /**
+     * Reads from the replica picked by the replica selector, and from the next
+     * pick while the replicas refuse the read
+     *
+     * @param serverIds
+     * @param port
+     * @param message
+     * @param primary
+     * @return false if no replica answered
+     */
+    private boolean readFromReplicas(int[] serverIds, int port, Message message, int primary) {
+        int[] candidates = serverIds;
+        while (candidates.length > 0) {
+            int targetId = replicaSelector.choose(candidates);
+            if (sendToServer(targetId, without(candidates, targetId), port, message, primary)) {
+                return true;
+            }
+            candidates = without(candidates, targetId);
+        }
+        return false;
+    }
+
+    private static int[] without(int[] serverIds, int serverId) {
+        int[] remaining = new int[serverIds.length - 1];
+        int count = 0;
+        for (int id : serverIds) {
+            if (id != serverId && count < remaining.length) {
+                remaining[count++] = id;
+            }
+        }
+        return remaining;
+    }
+
+    /**
+     * Open pipelined connection to a server, reconnecting if it was closed
+     *
+     * @param targetId
+     * @param port
+     * @return the connection, null if the server cannot be reached
+     */
+    private synchronized PipelinedConnection getPipelinedConnection(int targetId, int port) {
+        PipelinedConnection connection = pipelinedConnections.get(targetId);
+        if (connection != null && connection.isOpen()) {
+            return connection;
+        }
+        String serverIP = serverMap.get(targetId);
+        if (serverIP == null) {
+            System.err.println("No IP mapping found for server ID: " + targetId);
+            return null;
+        }
+        try {
+            connection = new PipelinedConnection(serverIP, port);
+            pipelinedConnections.put(targetId, connection);
+            return connection;
+        } catch (IOException e) {
+            System.err.println("Failed to connect to Server " + targetId + " (" + serverIP + ")");
+            return null;
+        }
+    }
+
+    /**
+     * Sends a request to a server over the connection pool, again while the
+     * server answers busy
+     *
+     * @param targetId
+     * @param hedgeIds replicas a read may be hedged to
+     * @param port
+     * @param message
+     * @param primary
+     * @return false if the server did not take the request
+     */
+    private boolean sendToServer(int targetId, int[] hedgeIds, int port, Message message, int primary) {
         boolean sent = false;
         String serverIP = serverMap.get(targetId);
         if (serverIP == null) {
             System.err.println("No IP mapping found for server ID: " + targetId);
-            sent = false;
-        }
-        try (Socket serverSocket = new Socket(serverIP, port);
-            PrintWriter serverWriter = new PrintWriter(serverSocket.getOutputStream(), true);
-            BufferedReader serverReader = new BufferedReader(new InputStreamReader(serverSocket.getInputStream()))) {
-            String finalPayload = message.getType() + "," + message.getSeqNo() + "," + (primary - 6) + "," + message.getMsgContent();
-            serverWriter.println(finalPayload);
-            serverWriter.flush();
-            if (message.getType() == Message.MessageType.R) {
-                String response = serverReader.readLine();
+            return sent;
+        }
+        boolean read = message.getType() == Message.MessageType.R;
+        try {
+            // Served over a pooled connection when one is idle
+            String response = read ? requestRead(targetId, hedgeIds, port, message, primary)
+                    : connectionContext.getServerConnectionPool().request(serverIP, port, getRequestType(message),
+                            message.getSeqNo(), primary - 6, message.getMsgContent());
+            int busyRetries = 0;
+            while (response != null && response.startsWith(BUSY_REPLY)) {
+                if (busyRetries++ >= BUSY_RETRIES) {
+                    // The server is up, another replica would not take the write either
+                    System.err.println("ERROR: Server " + (targetId - 6) + " stayed busy, "
+                            + (read ? "read" : "write") + " dropped");
+                    return true;
+                }
+                busyReplies.incrementAndGet();
+                try {
+                    Thread.sleep(getRetryDelay(response));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return true;
+                }
+                response = connectionContext.getServerConnectionPool().request(serverIP, port,
+                        getRequestType(message), message.getSeqNo(), primary - 6, message.getMsgContent());
+            }
+            if (read) {
+                if (response == null || response.equals("NACK")) {
+                    // Not serving, read from another replica
+                    return sent;
+                }
                 System.out.println("Server Response from " + (primary - 6) + ": " + response);
             } else if (message.getType() == Message.MessageType.W) {
-                String response = serverReader.readLine();
                 if (response.equals("NACK")) {
-                    // Server is down
-                    sent = false;
+                    // Not serving, the write was not applied
                     return sent;
                 }
+                if (response.startsWith(ERROR_REPLY)) {
+                    // Refused for good, another replica must not apply it either
+                    System.err.println("Server " + (targetId - 6) + " refused write: " + response);
+                    return true;
+                }
             }
-            System.out.println("Sent to Server " + (targetId - 6) + " @ " + serverIP);
+            System.out.println("Sent to Server " + (targetId - 6) + " @ " + serverIP
+                    + (COMMIT_WRITES && message.getType() == Message.MessageType.W ? ": " + response : ""));
+            sent = true;
+        } catch (OutcomeUnknownException e) {
+            reportOutcomeUnknown(targetId, e);
             sent = true;
         } catch (IOException e) {
             System.err.println("Failed to connect to Server " + targetId + " (" + serverIP + ")");
@@ -193,4 +523,131 @@ public class MessageReceiver extends Thread {
         }
         return sent;
     }
+
+    /**
+     * Reads from a replica. In the hedged read mode the read is also sent to
+     * one of hedgeIds if the replica has not answered within the hedge delay
+     * and the budget allows it; the first answer is used and the other read is
+     * cancelled, or its reply dropped if it was already sent.
+     *
+     * @param targetId
+     * @param hedgeIds
+     * @param port
+     * @param message
+     * @param primary
+     * @return the reply, null if the server closed the connection
+     * @throws IOException if no replica could be reached
+     */
+    private String requestRead(int targetId, int[] hedgeIds, int port, Message message, int primary)
+            throws IOException {
+        long delayNanos = HEDGED_READS ? hedgePolicy.startRead() : -1;
+        if (delayNanos < 0 || hedgeIds.length == 0) {
+            return readReplica(targetId, port, message, primary);
+        }
+        CompletionService<String> replies = new ExecutorCompletionService<>(HEDGE_EXECUTOR);
+        Future<String> first = replies.submit(readTask(targetId, port, message, primary));
+        try {
+            Future<String> reply = replies.poll(delayNanos, TimeUnit.NANOSECONDS);
+            if (reply != null || !hedgePolicy.tryHedge()) {
+                return getReply(first);
+            }
+            int hedgeId = replicaSelector.choose(hedgeIds);
+            Future<String> hedge = replies.submit(readTask(hedgeId, port, message, primary));
+            reply = replies.take();
+            Future<String> other = (reply == first) ? hedge : first;
+            String response;
+            try {
+                response = getReply(reply);
+            } catch (IOException e) {
+                response = null;
+            }
+            if (response == null || response.equals("NACK")) {
+                // The faster replica is not serving, the other one may be
+                return getReply(other);
+            }
+            other.cancel(false);
+            if (reply == hedge) {
+                hedgePolicy.hedgeWon();
+            }
+            return response;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a read");
+        }
+    }
+
+    private Callable<String> readTask(final int targetId, final int port, final Message message, final int primary) {
+        return new Callable<String>() {
+            @Override
+            public String call() throws IOException {
+                return readReplica(targetId, port, message, primary);
+            }
+        };
+    }
+
+    /**
+     * Reads from one replica, keeping its response time for the replica
+     * selector and the hedge delay
+     */
+    private String readReplica(int targetId, int port, Message message, int primary) throws IOException {
+        String serverIP = serverMap.get(targetId);
+        if (serverIP == null) {
+            throw new IOException("No IP mapping found for server ID: " + targetId);
+        }
+        long start = replicaSelector.begin(targetId);
+        String response;
+        try {
+            response = connectionContext.getServerConnectionPool().request(serverIP, port, getRequestType(message),
+                    message.getSeqNo(), primary - 6, message.getMsgContent());
+        } catch (IOException e) {
+            replicaSelector.complete(targetId, start, null);
+            throw e;
+        }
+        replicaSelector.complete(targetId, start, response);
+        if (HEDGED_READS && response != null && !response.equals("NACK")) {
+            hedgePolicy.record(System.nanoTime() - start);
+        }
+        return response;
+    }
+
+    private static String getReply(Future<String> reply) throws IOException {
+        try {
+            return reply.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a read");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Request type sent for a message, S for writes in the commit write mode
+     *
+     * @param message
+     * @return
+     */
+    private static char getRequestType(Message message) {
+        if (COMMIT_WRITES && message.getType() == Message.MessageType.W) {
+            return 'S';
+        }
+        return message.getType().name().charAt(0);
+    }
+
+    /**
+     * Delay asked for by a "BUSY <millis>" reply
+     *
+     * @param response
+     * @return
+     */
+    private static long getRetryDelay(String response) {
+        try {
+            return Math.max(1, Long.parseLong(response.substring(BUSY_REPLY.length()).trim()));
+        } catch (NumberFormatException e) {
+            return 5;
+        }
+    }
 }
@@ -0,0 +1,16 @@
+package Client;
+
+import java.io.IOException;
+
+/**
+ * A write was sent to a server but no reply arrived, so it may or may not have
+ * been applied. Such a write is reported rather than sent to another replica,
+ * which could apply it a second time.
+ */
+public class OutcomeUnknownException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public OutcomeUnknownException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
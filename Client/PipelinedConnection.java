@@ -0,0 +1,190 @@
+package Client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A connection to one server that keeps many requests in flight. Every request
+ * is tagged "@id request" and the server answers "@id reply", so replies are
+ * matched to their request in whatever order they arrive. A reader thread
+ * delivers the replies to the listener given with each request.
+ *
+ * At most ringstore.pipelineDepth requests (128 by default) are outstanding;
+ * send blocks while the window is full. If the connection breaks, every
+ * outstanding request fails with an OutcomeUnknownException, as the server may
+ * have applied it. If the server refuses the connection with a NACK, they fail
+ * with a plain IOException.
+ *
+ * A pipelined connection stays open until the client ends. The blocking client
+ * listener serves one connection at a time on platform threads, so such a
+ * connection would hold a server for every other client; only enable
+ * -Dringstore.pipeline=true when the servers run clientListener=nio or
+ * threadMode=virtual.
+ */
+public class PipelinedConnection {
+    public interface ReplyListener {
+        void onReply(String reply);
+
+        void onFailure(IOException e);
+    }
+
+    private static final String REQUEST_ID_PREFIX = "@";
+
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private final boolean binary;
+    private final Semaphore window;
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private final Map<Integer, ReplyListener> pending = new ConcurrentHashMap<>();
+    private volatile boolean open = true;
+    private volatile boolean refused;
+
+    public PipelinedConnection(String host, int port) throws IOException {
+        this.socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 65536));
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536));
+        this.binary = WireFrames.isBinaryConfigured();
+        this.window = new Semaphore(Math.max(1, Integer.getInteger("ringstore.pipelineDepth", 128)));
+        if (binary) {
+            WireFrames.writeHello(out);
+            out.flush();
+        }
+        Thread replyReader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readReplies();
+            }
+        }, "replies-" + host);
+        replyReader.setDaemon(true);
+        replyReader.start();
+    }
+
+    /**
+     * Sends a request without waiting for its reply
+     *
+     * @param request a request line, "Type,SeqNo,NodeNo,content"
+     * @param listener called with the reply, or on failure
+     * @throws OutcomeUnknownException if sending failed part way
+     * @throws IOException if the connection is closed
+     */
+    public void send(String request, ReplyListener listener) throws IOException {
+        try {
+            window.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the request window");
+        }
+        if (!open) {
+            window.release();
+            throw new IOException("Connection closed");
+        }
+        int requestId = nextRequestId.incrementAndGet();
+        pending.put(requestId, listener);
+        synchronized (out) {
+            if (!open) {
+                if (pending.remove(requestId) != null) {
+                    window.release();
+                }
+                throw new IOException("Connection closed");
+            }
+            try {
+                String line = REQUEST_ID_PREFIX + requestId + " " + request;
+                if (binary) {
+                    WireFrames.writeRawFrame(out, line);
+                } else {
+                    out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+                out.flush();
+            } catch (IOException e) {
+                if (pending.remove(requestId) != null) {
+                    window.release();
+                }
+                close();
+                // Part of the request may have reached the server
+                throw new OutcomeUnknownException("Request not fully sent to " + socket.getInetAddress(), e);
+            }
+        }
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Number of requests awaiting their reply
+     *
+     * @return
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Closes the connection, failing the outstanding requests
+     */
+    public void close() {
+        open = false;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        String reason = "Connection to " + socket.getInetAddress() + " closed";
+        failPending(refused ? new IOException(reason) : new OutcomeUnknownException(reason, null));
+    }
+
+    private void readReplies() {
+        try {
+            boolean framed = false;
+            while (open) {
+                String reply = framed ? WireFrames.readRawFrame(in) : WireFrames.readTextLine(in);
+                if (reply == null) {
+                    break;
+                }
+                if (!framed && binary && reply.equals(WireFrames.BINARY_HELLO)) {
+                    framed = true;
+                    continue;
+                }
+                if (!reply.startsWith(REQUEST_ID_PREFIX)) {
+                    // Untagged replies only come from a server refusing the connection
+                    System.err.println("Connection refused by " + socket.getInetAddress() + ": " + reply);
+                    refused = true;
+                    break;
+                }
+                int idEnd = reply.indexOf(' ');
+                ReplyListener listener = pending.remove(Integer.parseInt(reply.substring(1, idEnd)));
+                if (listener != null) {
+                    window.release();
+                    listener.onReply(reply.substring(idEnd + 1));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            if (open) {
+                System.err.println("Lost connection to " + socket.getInetAddress() + ": " + e);
+            }
+        }
+        close();
+    }
+
+    private void failPending(IOException cause) {
+        for (Integer requestId : pending.keySet()) {
+            // Raced with the reply reader, whoever removes the entry handles it
+            ReplyListener listener = pending.remove(requestId);
+            if (listener != null) {
+                window.release();
+                listener.onFailure(cause);
+            }
+        }
+    }
+}
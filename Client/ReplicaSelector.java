@@ -0,0 +1,173 @@
+package Client;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks the replica a read is sent to. Every server has an EWMA of its response
+ * time, weighted by ringstore.replicaEwmaWeight (0.2 by default), and a count
+ * of the reads it has in flight. A read picks two of the replicas at random and
+ * goes to the one with the lower expected wait, its EWMA times its reads in
+ * flight plus one, so an overloaded or recovering server gets fewer reads
+ * without all reads piling onto the fastest one. Servers without a sample yet
+ * are tried first, and so is a server idle without a reply for
+ * ringstore.replicaProbeMs (1000), so that one that recovered is noticed.
+ *
+ * A server that answers NACK (or cannot be reached) ringstore.replicaNackLimit
+ * (3) times in a row is skipped for ringstore.replicaSkipMs (2000). After that
+ * a single NACK skips it again, any other reply clears it. When every replica
+ * is skipped they are all candidates again.
+ */
+public class ReplicaSelector {
+    private static final double EWMA_WEIGHT = Double.parseDouble(System.getProperty("ringstore.replicaEwmaWeight",
+            "0.2"));
+    private static final int NACK_LIMIT = Integer.getInteger("ringstore.replicaNackLimit", 3);
+    private static final long SKIP_MILLIS = Long.getLong("ringstore.replicaSkipMs", 2000);
+    private static final long PROBE_MILLIS = Long.getLong("ringstore.replicaProbeMs", 1000);
+
+    private static final class Replica {
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private double ewmaNanos;
+        private boolean sampled;
+        private long sampledAt;
+        private int nacks;
+        private long skipUntil;
+        private long reads;
+        private long skips;
+    }
+
+    private final ConcurrentHashMap<Integer, Replica> replicas = new ConcurrentHashMap<>();
+
+    /**
+     * Picks the replica for a read
+     *
+     * @param serverIds candidate replicas, at least one
+     * @return
+     */
+    public int choose(int[] serverIds) {
+        long now = System.currentTimeMillis();
+        int[] candidates = new int[serverIds.length];
+        int count = 0;
+        for (int serverId : serverIds) {
+            if (!isSkipped(getReplica(serverId), now)) {
+                candidates[count++] = serverId;
+            }
+        }
+        if (count == 0) {
+            candidates = serverIds;
+            count = serverIds.length;
+        }
+        if (count == 1) {
+            return candidates[0];
+        }
+        // Power of two choices
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(count);
+        int second = random.nextInt(count - 1);
+        if (second >= first) {
+            second++;
+        }
+        return (getCost(candidates[second]) < getCost(candidates[first])) ? candidates[second] : candidates[first];
+    }
+
+    /**
+     * Counts a read sent to a server
+     *
+     * @param serverId
+     * @return the start time to pass to complete
+     */
+    public long begin(int serverId) {
+        getReplica(serverId).inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the reply to a read
+     *
+     * @param serverId
+     * @param startNanos as returned by begin
+     * @param response   the reply, null if the server could not be reached
+     */
+    public void complete(int serverId, long startNanos, String response) {
+        long elapsed = System.nanoTime() - startNanos;
+        Replica replica = getReplica(serverId);
+        replica.inFlight.decrementAndGet();
+        synchronized (replica) {
+            replica.reads++;
+            if (response == null || response.equals("NACK")) {
+                replica.nacks++;
+                if (replica.nacks >= NACK_LIMIT) {
+                    replica.skipUntil = System.currentTimeMillis() + SKIP_MILLIS;
+                    replica.skips++;
+                    // One more NACK after the skip skips it again
+                    replica.nacks = NACK_LIMIT - 1;
+                    System.out.println(String.format("Server %d keeps refusing reads, skipped for %d ms",
+                            serverId - 6, SKIP_MILLIS));
+                }
+                return;
+            }
+            replica.nacks = 0;
+            replica.sampledAt = System.currentTimeMillis();
+            if (!replica.sampled) {
+                replica.ewmaNanos = elapsed;
+                replica.sampled = true;
+            } else {
+                replica.ewmaNanos += EWMA_WEIGHT * (elapsed - replica.ewmaNanos);
+            }
+        }
+    }
+
+    /**
+     * Response time, reads in flight and skips of every server
+     *
+     * @return
+     */
+    public String getStats() {
+        StringBuilder stats = new StringBuilder("Read replicas:");
+        for (Map.Entry<Integer, Replica> entry : replicas.entrySet()) {
+            Replica replica = entry.getValue();
+            synchronized (replica) {
+                stats.append(String.format("%n  server %d: %d reads, ewma %.1f us, %d in flight, skipped %d times",
+                        entry.getKey() - 6, replica.reads, replica.ewmaNanos / 1000.0, replica.inFlight.get(),
+                        replica.skips));
+            }
+        }
+        return stats.toString();
+    }
+
+    private Replica getReplica(int serverId) {
+        Replica replica = replicas.get(serverId);
+        if (replica == null) {
+            Replica created = new Replica();
+            replica = replicas.putIfAbsent(serverId, created);
+            if (replica == null) {
+                replica = created;
+            }
+        }
+        return replica;
+    }
+
+    private static boolean isSkipped(Replica replica, long now) {
+        synchronized (replica) {
+            return replica.skipUntil > now;
+        }
+    }
+
+    /**
+     * Expected wait at a server, 0 before its first reply or when it is due for
+     * a probe
+     */
+    private double getCost(int serverId) {
+        Replica replica = getReplica(serverId);
+        synchronized (replica) {
+            int inFlight = replica.inFlight.get();
+            if (!replica.sampled
+                    || (inFlight == 0 && System.currentTimeMillis() - replica.sampledAt > PROBE_MILLIS)) {
+                return 0;
+            }
+            return replica.ewmaNanos * (inFlight + 1);
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package Client;
 
 import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
 
 public class Sequencer implements Runnable {
     public boolean isSequencer = false; // Sequencer Token
@@ -10,6 +12,9 @@ public class Sequencer implements Runnable {
     private SequencerQueue sequencerQueue;
     private int DELIVERY_COUNT = 0;
     private final int TOTAL_MESSAGES = 500;
+    // Writes are also numbered per primary server, from 1, so the head of each
+    // chain sees one contiguous sequence from all clients and applies it in order
+    private final Map<Integer, Integer> writeSequences = new HashMap<>();
 
     /**
  * The Sequencer class runs on the designated sequencer node.
@@ -57,9 +62,16 @@ public class Sequencer implements Runnable {
         while (messageQueue.peekMessageQueue() != null && isDeliverable(messageQueue.peekMessageQueue())) {
             Message topMessage = messageQueue.pollMessageQueue();
     
-            // Assign the sequence number
+            // Assign the sequence number, writes carry their number within their primary
             sequenceNo++;
             topMessage.setSeqNo(sequenceNo);
+            if (topMessage.getType() == Message.MessageType.W) {
+                int primary = MessageReceiver.hashToServer(topMessage.getKey());
+                Integer writeSequence = writeSequences.get(primary);
+                writeSequence = (writeSequence == null) ? 1 : writeSequence + 1;
+                writeSequences.put(primary, writeSequence);
+                topMessage.setSeqNo(writeSequence);
+            }
     
             // Deliver the message
             deliverMessage(topMessage);
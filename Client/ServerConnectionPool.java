@@ -0,0 +1,299 @@
+package Client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of long-lived connections to the RingStore servers, so that a request
+ * does not pay a TCP handshake and an accept on the server every time.
+ *
+ * Every server has its own stack of idle connections, at most
+ * ringstore.poolMaxIdle (4 by default). A connection idle for longer than
+ * ringstore.poolHealthCheckMs (1000) is checked before it is handed out, and a
+ * background thread closes connections idle for longer than
+ * ringstore.poolIdleTimeoutMs (30000). Pooling is enabled with
+ * -Dringstore.pool=true; by default every request opens a fresh connection, as
+ * before.
+ *
+ * Hits count requests served by a pooled connection, misses requests that had
+ * to open one.
+ *
+ * The blocking client listener serves one connection at a time on platform
+ * threads, and an idle pooled connection would hold a server for every other
+ * client, so only enable pooling when the servers run clientListener=nio or
+ * threadMode=virtual.
+ */
+public class ServerConnectionPool {
+    private static final boolean ENABLED = Boolean.getBoolean("ringstore.pool");
+    private static final int MAX_IDLE = Integer.getInteger("ringstore.poolMaxIdle", 4);
+    private static final long HEALTH_CHECK_MILLIS = Long.getLong("ringstore.poolHealthCheckMs", 1000);
+    private static final long IDLE_TIMEOUT_MILLIS = Long.getLong("ringstore.poolIdleTimeoutMs", 30000);
+
+    private final Map<String, ArrayDeque<Connection>> idleConnections = new HashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile boolean closed;
+
+    public ServerConnectionPool() {
+        if (ENABLED) {
+            Thread evictor = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (!closed) {
+                        try {
+                            Thread.sleep(Math.max(1, IDLE_TIMEOUT_MILLIS / 2));
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        evictIdle(System.currentTimeMillis() - IDLE_TIMEOUT_MILLIS);
+                    }
+                }
+            }, "connection-pool-evictor");
+            evictor.setDaemon(true);
+            evictor.start();
+        }
+    }
+
+    /**
+     * Sends a request to a server and waits for the reply. A pooled connection
+     * that turns out to be broken is dropped, and a read is retried once on a
+     * new connection. Other requests are not sent again: once a write was sent
+     * and no reply came back, the server may have applied it, and that is
+     * reported with an OutcomeUnknownException.
+     *
+     * @param serverIP
+     * @param port
+     * @param type
+     * @param seqNo
+     * @param nodeNo
+     * @param content
+     * @return the reply line, null if a read got no reply
+     * @throws OutcomeUnknownException if a write got no reply
+     * @throws IOException if the server could not be reached
+     */
+    public String request(String serverIP, int port, char type, int seqNo, int nodeNo, String content)
+            throws IOException {
+        Connection connection = borrow(serverIP, port);
+        if (connection != null) {
+            IOException failure = null;
+            try {
+                String reply = connection.exchange(type, seqNo, nodeNo, content);
+                if (reply != null) {
+                    hits.incrementAndGet();
+                    release(connection, reply);
+                    return reply;
+                }
+            } catch (IOException e) {
+                // The server closed it in the meantime
+                failure = e;
+            }
+            failures.incrementAndGet();
+            connection.close();
+            if (type != 'R') {
+                throw new OutcomeUnknownException("No reply to a write on a pooled connection", failure);
+            }
+            // Reconnect below
+        }
+        misses.incrementAndGet();
+        // Failing to connect means the request was never sent
+        connection = new Connection(serverIP, port);
+        String reply;
+        try {
+            reply = connection.exchange(type, seqNo, nodeNo, content);
+        } catch (IOException e) {
+            connection.close();
+            if (type != 'R') {
+                throw new OutcomeUnknownException("No reply to a write", e);
+            }
+            throw e;
+        }
+        if (reply == null && type != 'R') {
+            connection.close();
+            throw new OutcomeUnknownException("Connection closed before the reply to a write", null);
+        }
+        release(connection, reply);
+        return reply;
+    }
+
+    /**
+     * Pool counters
+     *
+     * @return
+     */
+    public String getStats() {
+        long hitCount = hits.get();
+        long missCount = misses.get();
+        long total = hitCount + missCount;
+        return String.format("Connection pool: %d hits, %d misses (%.1f%% hit rate), %d evicted, %d broken", hitCount,
+                missCount, (total == 0) ? 0.0 : 100.0 * hitCount / total, evictions.get(), failures.get());
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Closes all idle connections and stops pooling
+     */
+    public void close() {
+        closed = true;
+        evictIdle(Long.MAX_VALUE);
+    }
+
+    private Connection borrow(String serverIP, int port) {
+        if (!ENABLED) {
+            return null;
+        }
+        String address = serverIP + ":" + port;
+        while (true) {
+            Connection connection;
+            synchronized (idleConnections) {
+                ArrayDeque<Connection> idle = idleConnections.get(address);
+                connection = (idle == null) ? null : idle.pollFirst();
+            }
+            if (connection == null) {
+                return null;
+            }
+            if (System.currentTimeMillis() - connection.lastUsed < HEALTH_CHECK_MILLIS || connection.isHealthy()) {
+                return connection;
+            }
+            failures.incrementAndGet();
+            connection.close();
+        }
+    }
+
+    private void release(Connection connection, String reply) {
+        // A refused connection is closed by the server
+        if (!ENABLED || closed || reply == null || reply.equals("NACK")) {
+            connection.close();
+            return;
+        }
+        connection.lastUsed = System.currentTimeMillis();
+        synchronized (idleConnections) {
+            ArrayDeque<Connection> idle = idleConnections.get(connection.address);
+            if (idle == null) {
+                idle = new ArrayDeque<>();
+                idleConnections.put(connection.address, idle);
+            }
+            if (idle.size() < MAX_IDLE) {
+                // Most recently used first, so the others can time out
+                idle.addFirst(connection);
+                return;
+            }
+        }
+        connection.close();
+    }
+
+    private void evictIdle(long idleSince) {
+        synchronized (idleConnections) {
+            for (ArrayDeque<Connection> idle : idleConnections.values()) {
+                Iterator<Connection> connections = idle.iterator();
+                while (connections.hasNext()) {
+                    Connection connection = connections.next();
+                    if (connection.lastUsed < idleSince) {
+                        connections.remove();
+                        connection.close();
+                        evictions.incrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * One connection to a server, in the text or binary wire format
+     */
+    private static final class Connection {
+        private final String address;
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final BufferedInputStream bufferedIn;
+        private final DataInputStream in;
+        private final boolean binary;
+        private boolean replyFramed;
+        private long lastUsed;
+
+        Connection(String serverIP, int port) throws IOException {
+            this.address = serverIP + ":" + port;
+            this.socket = new Socket(serverIP, port);
+            socket.setTcpNoDelay(true);
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            this.bufferedIn = new BufferedInputStream(socket.getInputStream());
+            this.in = new DataInputStream(bufferedIn);
+            this.binary = WireFrames.isBinaryConfigured();
+            if (binary) {
+                WireFrames.writeHello(out);
+            }
+        }
+
+        String exchange(char type, int seqNo, int nodeNo, String content) throws IOException {
+            if (binary) {
+                WireFrames.writeRequestFrame(out, type, seqNo, nodeNo, content);
+            } else {
+                out.write((type + "," + seqNo + "," + nodeNo + "," + content + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            out.flush();
+            while (true) {
+                if (replyFramed) {
+                    return WireFrames.readRawFrame(in);
+                }
+                String reply = WireFrames.readTextLine(in);
+                if (reply == null || !binary || !reply.equals(WireFrames.BINARY_HELLO)) {
+                    return reply;
+                }
+                replyFramed = true;
+            }
+        }
+
+        /**
+         * True unless the server closed the connection while it was idle
+         */
+        boolean isHealthy() {
+            if (socket.isClosed()) {
+                return false;
+            }
+            try {
+                socket.setSoTimeout(1);
+                // Nothing arrives unasked, so either the end of the stream or a
+                // stray byte, both leave the connection unusable
+                bufferedIn.read();
+                return false;
+            } catch (SocketTimeoutException e) {
+                return true;
+            } catch (IOException e) {
+                return false;
+            } finally {
+                try {
+                    socket.setSoTimeout(0);
+                } catch (IOException e) {
+                    // Closed, the next exchange fails
+                }
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
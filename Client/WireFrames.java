@@ -0,0 +1,182 @@
+package Client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Client side of the binary wire format of the servers. After the hello line a
+ * request is sent as the length-prefixed frame
+ *
+ *      [frame length][type byte][seq no][node no][key length][key][value length][value]
+ *
+ * and replies come back as raw frames (type 0) carrying the reply line. Enabled
+ * with -Dringstore.wireFormat=binary, text lines are used otherwise.
+ */
+public final class WireFrames {
+    public static final String BINARY_HELLO = "WIRE binary";
+    private static final int FRAME_HEADER_BYTES = 17;
+    private static final byte RAW_TYPE = 0;
+
+    private WireFrames() {
+    }
+
+    /**
+     * True when requests to the servers are sent in the binary format
+     *
+     * @return
+     */
+    public static boolean isBinaryConfigured() {
+        return "binary".equalsIgnoreCase(System.getProperty("ringstore.wireFormat", "text"));
+    }
+
+    /**
+     * Announces the binary format and writes one request frame
+     *
+     * @param outputStream
+     * @param type
+     * @param seqNo
+     * @param nodeNo
+     * @param content key:value or key
+     * @throws IOException
+     */
+    public static void writeRequest(OutputStream outputStream, char type, int seqNo, int nodeNo, String content)
+            throws IOException {
+        DataOutputStream out = new DataOutputStream(outputStream);
+        writeHello(out);
+        writeRequestFrame(out, type, seqNo, nodeNo, content);
+        out.flush();
+    }
+
+    /**
+     * Writes one request frame on a connection that already announced the
+     * binary format
+     *
+     * @param out
+     * @param type
+     * @param seqNo
+     * @param nodeNo
+     * @param content key:value or key
+     * @throws IOException
+     */
+    public static void writeRequestFrame(DataOutputStream out, char type, int seqNo, int nodeNo, String content)
+            throws IOException {
+        int separator = content.indexOf(':');
+        byte[] keyBytes = ((separator < 0) ? content : content.substring(0, separator)).getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = (separator < 0) ? null : content.substring(separator + 1).getBytes(StandardCharsets.UTF_8);
+        writeFrame(out, (byte) type, seqNo, nodeNo, keyBytes, valueBytes);
+    }
+
+    /**
+     * Announces the binary format
+     *
+     * @param outputStream
+     * @throws IOException
+     */
+    public static void writeHello(OutputStream outputStream) throws IOException {
+        outputStream.write((BINARY_HELLO + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes a line, such as a tagged request, as a raw frame
+     *
+     * @param out
+     * @param line
+     * @throws IOException
+     */
+    public static void writeRawFrame(DataOutputStream out, String line) throws IOException {
+        writeFrame(out, RAW_TYPE, 0, 0, null, line.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads one reply. A server that is not accepting connections answers with
+     * a plain NACK line before switching formats.
+     *
+     * @param inputStream
+     * @return the reply line, null at end of stream
+     * @throws IOException
+     */
+    public static String readReply(InputStream inputStream) throws IOException {
+        DataInputStream in = new DataInputStream(inputStream);
+        String line = readTextLine(in);
+        if (line == null || !line.equals(BINARY_HELLO)) {
+            return line;
+        }
+        return readRawFrame(in);
+    }
+
+    /**
+     * Reads a reply frame
+     *
+     * @param in
+     * @return the reply line
+     * @throws IOException
+     */
+    public static String readRawFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        byte type = in.readByte();
+        in.readInt();
+        in.readInt();
+        String key = readField(in);
+        String value = readField(in);
+        if (type != RAW_TYPE || length < FRAME_HEADER_BYTES) {
+            throw new IOException("Unexpected reply frame of type " + type);
+        }
+        return (value == null) ? key : value;
+    }
+
+    /**
+     * Reads a line of text
+     *
+     * @param in
+     * @return the line, null at end of stream
+     * @throws IOException
+     */
+    public static String readTextLine(DataInputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        return new String(line.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void writeFrame(DataOutputStream out, byte type, int seqNo, int nodeNo, byte[] keyBytes,
+            byte[] valueBytes) throws IOException {
+        out.writeInt(FRAME_HEADER_BYTES + ((keyBytes == null) ? 0 : keyBytes.length)
+                + ((valueBytes == null) ? 0 : valueBytes.length));
+        out.writeByte(type);
+        out.writeInt(seqNo);
+        out.writeInt(nodeNo);
+        writeField(out, keyBytes);
+        writeField(out, valueBytes);
+    }
+
+    private static void writeField(DataOutputStream out, byte[] field) throws IOException {
+        if (field == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(field.length);
+            out.write(field);
+        }
+    }
+
+    private static String readField(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] field = new byte[length];
+        in.readFully(field);
+        return new String(field, StandardCharsets.UTF_8);
+    }
+}
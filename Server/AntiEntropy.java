@@ -0,0 +1,219 @@
+package Server;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Background anti-entropy between a node and its predecessor. For every
+ * partition both nodes replicate, the node compares its Merkle tree with the
+ * predecessor's one level at a time, descending only into nodes whose hashes
+ * differ. The entries of the differing leaves are then exchanged both ways: the
+ * node pulls the predecessor's entries and pushes its own, so a key missing on
+ * either side is repaired. Each side keeps the newer version of every key,
+ * entries older than the local copy are ignored by DataStore.applyDiff.
+ *
+ * Messages exchanged over the ring links -
+ *      M,,node,partition:n;n;...       hash request, sent to the predecessor
+ *      H,,node,partition:n=hash;...    hash reply, sent back to the successor
+ *      K,,node,partition:leaf;leaf     entry request for differing leaves
+ *      C,,node,base64                  entries of those leaves, in either
+ *                                      direction, in the binary diff encoding
+ *                                      so that any value survives
+ */
+public class AntiEntropy implements Runnable {
+    private static final int MAX_NODES_PER_MESSAGE = 256;
+
+    private ConnectionContext connectionContext;
+    private RingManager.RunningFlag runningFlag;
+    private int intervalSeconds;
+
+    public AntiEntropy(ConnectionContext connectionContext, RingManager.RunningFlag runningFlag, int intervalSeconds) {
+        this.connectionContext = connectionContext;
+        this.runningFlag = runningFlag;
+        this.intervalSeconds = intervalSeconds;
+    }
+
+    /**
+     * Starts a round with the predecessor every interval
+     */
+    @Override
+    public void run() {
+        while (runningFlag.running) {
+            try {
+                Thread.sleep(intervalSeconds * 1000L);
+                startRound();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Anti-entropy round failed");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Asks the predecessor for the root hash of every shared partition
+     *
+     * @throws IOException
+     */
+    public void startRound() throws IOException {
+        Integer predecessor = connectionContext.getPredecessor();
+        if (!connectionContext.isAcceptingConnections() || predecessor == null) {
+            return;
+        }
+        for (int partition : sharedPartitions(ConnectionContext.getNodeID(), predecessor)) {
+            sendToPredecessor("M", partition, "0");
+        }
+    }
+
+    /**
+     * Predecessor side. Answers a hash request from the successor.
+     *
+     * @param message
+     * @return the reply line
+     */
+    public String handleHashRequest(Message message) {
+        String[] partitionAndNodes = message.getMessageContent().split(":", 2);
+        int partition = Integer.parseInt(partitionAndNodes[0]);
+        int[] nodes = parseNodes(partitionAndNodes[1]);
+        return String.format("H,,%d,%d:%s", ConnectionContext.getNodeID(), partition,
+                connectionContext.getDataStore().getMerkleHashes(partition, nodes));
+    }
+
+    /**
+     * Successor side. Compares the predecessor's hashes with the local tree and
+     * asks for the children of differing inner nodes and the entries of
+     * differing leaves.
+     *
+     * @param message
+     * @throws IOException
+     */
+    public void handleHashReply(Message message) throws IOException {
+        String[] partitionAndHashes = message.getMessageContent().split(":", 2);
+        int partition = Integer.parseInt(partitionAndHashes[0]);
+        if (partitionAndHashes.length < 2 || partitionAndHashes[1].isEmpty()) {
+            return;
+        }
+        MerkleTree merkleTree = connectionContext.getDataStore().getMerkleTree(partition);
+        List<Integer> childRequests = new ArrayList<>();
+        List<Integer> leafRequests = new ArrayList<>();
+        for (String entry : partitionAndHashes[1].split(";")) {
+            String[] nodeAndHash = entry.split("=", 2);
+            int node = Integer.parseInt(nodeAndHash[0]);
+            long remoteHash = new BigInteger(nodeAndHash[1], 16).longValue();
+            if (!merkleTree.isValidNode(node) || merkleTree.getHash(node) == remoteHash) {
+                continue;
+            }
+            if (merkleTree.isLeaf(node)) {
+                leafRequests.add(node);
+            } else {
+                childRequests.add(2 * node + 1);
+                childRequests.add(2 * node + 2);
+            }
+        }
+        sendInBatches("M", partition, childRequests);
+        if (!leafRequests.isEmpty()) {
+            System.out.println(String.format("Anti-entropy: %d diverging leaves in partition %d", leafRequests.size(),
+                    partition));
+        }
+        sendInBatches("K", partition, leafRequests);
+        sendLeafEntries(partition, leafRequests);
+    }
+
+    /**
+     * Predecessor side. Returns the entries of the requested leaves as a diff.
+     *
+     * @param message
+     * @return the reply line
+     */
+    public String handleKeyRequest(Message message) {
+        String[] partitionAndLeaves = message.getMessageContent().split(":", 2);
+        Set<Integer> leaves = new HashSet<>();
+        for (int leaf : parseNodes(partitionAndLeaves[1])) {
+            leaves.add(leaf);
+        }
+        return formatLeafEntries(Integer.parseInt(partitionAndLeaves[0]), leaves);
+    }
+
+    /**
+     * Successor side. Pushes the local entries of the differing leaves to the
+     * predecessor, which keeps those newer than its own.
+     */
+    private void sendLeafEntries(int partition, List<Integer> leafNodes) throws IOException {
+        Integer predecessor = connectionContext.getPredecessor();
+        if (leafNodes.isEmpty() || predecessor == null) {
+            return;
+        }
+        connectionContext.getOutputWriter(predecessor).println(
+                formatLeafEntries(partition, new HashSet<>(leafNodes)));
+    }
+
+    private String formatLeafEntries(int partition, Set<Integer> leafNodes) {
+        DiffCodec diffCodec = new DiffCodec(DiffCodec.Encoding.BINARY);
+        connectionContext.getDataStore().getDiffsForLeaves(partition, leafNodes, diffCodec);
+        return String.format("%s,,%d,%s", diffCodec.getChunkType(), ConnectionContext.getNodeID(),
+                diffCodec.drain());
+    }
+
+    /**
+     * Partitions replicated by both nodes. A node replicates its own partition
+     * and the two before it.
+     */
+    private List<Integer> sharedPartitions(int nodeId, int otherNodeId) {
+        int totalServers = connectionContext.getMaxServers();
+        List<Integer> shared = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            int partition = (nodeId - i + totalServers) % totalServers;
+            int distance = (otherNodeId - partition + totalServers) % totalServers;
+            if (distance < 3) {
+                shared.add(partition);
+            }
+        }
+        return shared;
+    }
+
+    private void sendInBatches(String type, int partition, List<Integer> nodes) throws IOException {
+        StringBuilder batch = new StringBuilder();
+        int count = 0;
+        for (int node : nodes) {
+            if (count > 0) {
+                batch.append(";");
+            }
+            batch.append(node);
+            if (++count == MAX_NODES_PER_MESSAGE) {
+                sendToPredecessor(type, partition, batch.toString());
+                batch.setLength(0);
+                count = 0;
+            }
+        }
+        if (count > 0) {
+            sendToPredecessor(type, partition, batch.toString());
+        }
+    }
+
+    private void sendToPredecessor(String type, int partition, String nodes) throws IOException {
+        Integer predecessor = connectionContext.getPredecessor();
+        if (predecessor == null) {
+            return;
+        }
+        MessageWriter predWriter = connectionContext.getOutputWriter(predecessor);
+        predWriter.println(String.format("%s,,%d,%d:%s", type, ConnectionContext.getNodeID(), partition, nodes));
+    }
+
+    private static int[] parseNodes(String nodeList) {
+        if (nodeList == null || nodeList.isEmpty()) {
+            return new int[0];
+        }
+        String[] parts = nodeList.split(";");
+        int[] nodes = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            nodes[i] = Integer.parseInt(parts[i]);
+        }
+        return nodes;
+    }
+}
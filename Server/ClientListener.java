@@ -1,27 +1,23 @@
 package Server;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
 
 public class ClientListener implements Runnable {
-    private Integer clientListenerPort=24942;
+    public static final int CLIENT_LISTENER_PORT = 24942;
+    private Integer clientListenerPort=CLIENT_LISTENER_PORT;
     ServerSocket clientListenerSocket;
     ConnectionContext connectionContext;
-    DataStore dataStore;
+    ClientRequestHandler requestHandler;
     RingManager.RunningFlag runningFlag;
 
     public ClientListener(ConnectionContext connectionContext, RingManager.RunningFlag runningFlag) throws IOException{
         this.connectionContext = connectionContext;
         this.runningFlag = runningFlag;
-        this.connectionContext = connectionContext;
         clientListenerSocket = new ServerSocket(clientListenerPort);
         connectionContext.setClientSocketServer(clientListenerSocket);
-        this.dataStore = connectionContext.getDataStore();
+        this.requestHandler = new ClientRequestHandler(connectionContext);
     }
 
     @Override
@@ -29,79 +25,84 @@ public class ClientListener implements Runnable {
         try {
             System.out.println("ClientListener Ready");
             while(runningFlag.running) {
-                Socket clientSocket = clientListenerSocket.accept();
-                PrintWriter clientWriter = new PrintWriter(new OutputStreamWriter(clientSocket.getOutputStream()), true);
-                if (connectionContext.isAcceptingConnections()) {              
-                    // Accept any client access request
-                    System.out.println("Connection established from: " + clientSocket.getInetAddress());
-                    BufferedReader clientReader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                    String rawMessageContent;
-                    
-                    while ((rawMessageContent = clientReader.readLine()) != null) {
-                        Message message = new Message(rawMessageContent);
-                        System.out.println("Received Message: " + rawMessageContent);
-                        if ((message.getMessageType()).equals("R")) {
-                            // Directly handle reads
-                            String storedValue = dataStore.readData(Integer.parseInt(message.getMessageContent()));
-                            String retString = String.format("Key %s : Value %s at Server %d", message.getMessageContent(), storedValue, ConnectionContext.getNodeID());
-                            if (storedValue == null || storedValue.isEmpty()) {
-                                retString = String.format("ERROR! Key %s not present", message.getMessageContent());
-                            }
-                            clientWriter.println(retString);
-                        }
-                        else if ((message.getMessageType()).equals("W")) {
-                            if (isMessageValid(message)) {
-                                // Place writes in the write queue
-                                connectionContext.getWriteQueue().addMessageToQueue(message);
-                                clientWriter.println("ACK");
-                            } else {
-                                clientWriter.println("Write Servers Unreachable. Write Failed");
+                final Socket clientSocket = clientListenerSocket.accept();
+                if (ServerThreads.isVirtual()) {
+                    // One virtual thread per client connection
+                    ServerThreads.newThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                serveClient(clientSocket);
+                            } catch (IOException | RuntimeException e) {
+                                e.printStackTrace();
                             }
                         }
-                    }
-                    // closing the client socket
+                    }, "client-" + clientSocket.getPort()).start();
                 } else {
-                    // Give Replies if not accepting connections
-                    clientWriter.println("NACK");
-                } 
-                clientSocket.close();
-            } 
+                    try {
+                        serveClient(clientSocket);
+                    } catch (IOException | RuntimeException e) {
+                        // Broken connection or malformed request, only this connection is closed
+                        System.err.println("Closing client connection: " + e);
+                    }
+                }
+            }
         } catch (NumberFormatException | IOException e) {
             e.printStackTrace();
         }
-        
-    }
 
-    /**
-     * Checks the validity of a message for delivery
-     * @param message
-     * @return
-     */
-    private boolean isMessageValid(Message message) {
-        int currentNodeId = connectionContext.getNodeID();
-        // A client connection must be to the first or second server only!
-        int successorNode = connectionContext.getSuccessor();
-        int primaryNode = message.getNodeNumber();
-        int secondaryNode = (primaryNode + 1) % (connectionContext.getMaxServers());
-        int tertiaryNode = (primaryNode + 2) % (connectionContext.getMaxServers());
-        boolean output = false;
-        if (isValidSuccessor(currentNodeId, successorNode, primaryNode, secondaryNode, tertiaryNode)) {
-            output = true;
-        }
-        System.out.println("isMessageValid: " + output);
-        return output;
     }
 
     /**
-     * Accesses if the successor currently set is viable or not
-     * @param currentNodeId
-     * @param successorNode
-     * @param primaryNode
-     * @param secondaryNode
-     * @param tertiaryNode
-     * @return
+     * Answers the requests of one client connection until it is closed
+     * @param clientSocket
+     * @throws IOException
      */
-    private boolean isValidSuccessor(int currentNodeId, int successorNode, int primaryNode, int secondaryNode, int tertiaryNode) {
-        return ((currentNodeId == primaryNode && (successorNode == secondaryNode || successorNode == tertiaryNode)) || (currentNodeId == secondaryNode && successorNode == tertiaryNode));
+    private void serveClient(Socket clientSocket) throws IOException {
+        try {
+            if (connectionContext.isAcceptingConnections()) {
+                // Accept any client access request
+                System.out.println("Connection established from: " + clientSocket.getInetAddress());
+                MessageReader clientReader = new MessageReader(clientSocket.getInputStream());
+                MessageWriter clientWriter = null;
+                ClientRequestHandler.ReplySink replySink = null;
+                WireProtocol.Request request = new WireProtocol.Request();
+
+                // Requests tagged with an id may be pipelined, see ClientRequestHandler
+                while (clientReader.readRequest(request)) {
+                    if (request.message == null && (request.line == null || request.line.isEmpty())) {
+                        continue;
+                    }
+                    if (clientWriter == null) {
+                        // Reply in the format the client chose
+                        clientWriter = new MessageWriter(clientSocket.getOutputStream(), clientReader.isBinary(), true);
+                        final MessageWriter writer = clientWriter;
+                        replySink = new ClientRequestHandler.ReplySink() {
+                            @Override
+                            public void reply(String reply) {
+                                writer.printRawLine(reply);
+                            }
+                        };
+                    }
+                    if (request.line != null && request.line.startsWith(ClientRequestHandler.REQUEST_ID_PREFIX)) {
+                        // Replies waiting on a commit are written when it arrives
+                        requestHandler.handle(request.line, replySink);
+                        continue;
+                    }
+                    // Frames are handled as decoded, lines are parsed
+                    String reply = (request.message != null) ? requestHandler.handleFrame(request.message)
+                            : requestHandler.handle(request.line);
+                    if (reply != null) {
+                        clientWriter.printRawLine(reply);
+                    }
+                }
+            } else {
+                // Give Replies if not accepting connections
+                new MessageWriter(clientSocket.getOutputStream(), false, false).printRawLine("NACK");
+            }
+        } finally {
+            // closing the client socket
+            clientSocket.close();
+        }
     }
 }
@@ -0,0 +1,364 @@
+package Server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Answers client requests. Shared by the client front ends so that they only
+ * differ in how connections are served.
+ *
+ * Reads (R) are served from the local DataStore. Writes (W) are placed on the
+ * write queue and acknowledged, as long as this node and its successor can
+ * still replicate them. While the write queue of the partition is full a write
+ * is answered "BUSY <millis>" instead, asking the client to send it again after
+ * writeRetryAfterMillis. A write whose sequence number was already released is
+ * answered with an error and not applied, see WriteReorderBuffer. So is a
+ * write whose value holds a line break while the ring links use the text
+ * format.
+ *
+ * Commit writes (S) are queued like writes but answered only once the tail of
+ * the chain acked them, "COMMITTED <version>", or "TIMEOUT" if that took longer
+ * than commitTimeoutMillis. The write is still applied in that case.
+ *
+ * With readConsistency=craq reads of clean keys are served locally and reads of
+ * dirty keys are answered once the commit authority of the partition told which
+ * version is committed, see CraqReads. Version queries (V) from other replicas
+ * are answered "VERSION <version>".
+ *
+ * A request may be tagged with an id, "@id request", and is then answered with
+ * "@id reply". Clients use the ids to keep many requests in flight on one
+ * connection and match replies in whatever order they arrive. Requests that
+ * arrive as binary frames are handled as decoded, see handleFrame.
+ */
+public class ClientRequestHandler {
+    public static final String REQUEST_ID_PREFIX = "@";
+    public static final String BUSY_REPLY = "BUSY";
+    public static final String COMMIT_WRITE = "S";
+    public static final String VERSION_QUERY = "V";
+    public static final String VERSION_REPLY = "VERSION";
+    private static final String LINE_BREAK_REPLY = "ERROR! Line breaks need wireFormat=binary on the ring. Write Failed";
+
+    /**
+     * Receives the reply to a request
+     */
+    public interface ReplySink {
+        void reply(String reply);
+    }
+
+    private ConnectionContext connectionContext;
+    private DataStore dataStore;
+    private String busyReply;
+
+    public ClientRequestHandler(ConnectionContext connectionContext) {
+        this.connectionContext = connectionContext;
+        this.dataStore = connectionContext.getDataStore();
+        this.busyReply = BUSY_REPLY + " " + ConnectionContext.getServerProperty("writeRetryAfterMillis", 5);
+    }
+
+    /**
+     * Handles one request line, waiting for the commit of a commit write
+     *
+     * @param rawMessageContent
+     * @return the reply line, null when the request has no reply
+     */
+    public String handle(String rawMessageContent) {
+        return awaitReply(rawMessageContent, null);
+    }
+
+    /**
+     * Handles the request of a binary frame, waiting for the commit of a commit
+     * write
+     *
+     * @param message
+     * @return the reply line, null when the request has no reply
+     */
+    public String handleFrame(Message message) {
+        return awaitReply(null, message);
+    }
+
+    private String awaitReply(String rawMessageContent, Message message) {
+        final ArrayBlockingQueue<String> replies = new ArrayBlockingQueue<>(1);
+        ReplySink replySink = new ReplySink() {
+            @Override
+            public void reply(String reply) {
+                replies.offer(reply);
+            }
+        };
+        boolean deferred = (message != null) ? handleFrame(message, replySink) : handle(rawMessageContent, replySink);
+        if (!deferred) {
+            return replies.poll();
+        }
+        try {
+            // Answered by commitTimeoutMillis at the latest
+            return replies.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Handles one request line, passing the reply to the sink
+     *
+     * @param rawMessageContent
+     * @param replySink
+     * @return true if the reply is deferred, it then reaches the sink later
+     *         from another thread
+     */
+    public boolean handle(String rawMessageContent, ReplySink replySink) {
+        String requestId = null;
+        String request = rawMessageContent;
+        if (rawMessageContent.startsWith(REQUEST_ID_PREFIX)) {
+            int idEnd = rawMessageContent.indexOf(' ');
+            if (idEnd < 0) {
+                System.out.println("Malformed tagged request: " + rawMessageContent);
+                return false;
+            }
+            requestId = rawMessageContent.substring(0, idEnd);
+            request = rawMessageContent.substring(idEnd + 1);
+        }
+        return handle(requestId, parseRequest(request), replySink);
+    }
+
+    /**
+     * Handles the request of a binary frame, already decoded into a message,
+     * passing the reply to the sink
+     *
+     * @param message
+     * @param replySink
+     * @return true if the reply is deferred
+     */
+    public boolean handleFrame(Message message, ReplySink replySink) {
+        return handle(null, message, replySink);
+    }
+
+    private boolean handle(String requestId, Message message, ReplySink replySink) {
+        if (message != null && message.getMessageType().equals(COMMIT_WRITE)) {
+            ReplySink commitSink = (requestId == null) ? replySink : new TaggedReplySink(requestId, replySink);
+            String reply = handleCommitWrite(message, commitSink);
+            if (reply == null) {
+                return true;
+            }
+            commitSink.reply(reply);
+            return false;
+        }
+        if (message != null && message.getMessageType().equals("R") && connectionContext.getCraqReads() != null) {
+            ReplySink readSink = (requestId == null) ? replySink : new TaggedReplySink(requestId, replySink);
+            String reply = handleCraqRead(message, readSink);
+            if (reply == null) {
+                return true;
+            }
+            readSink.reply(reply);
+            return false;
+        }
+        String reply = handle(message);
+        if (requestId != null) {
+            // Tagged requests are always answered, the client is waiting on the id
+            replySink.reply(requestId + " " + ((reply == null) ? "ERROR! Unsupported request" : reply));
+        } else if (reply != null) {
+            replySink.reply(reply);
+        }
+        return false;
+    }
+
+    private Message parseRequest(String rawMessageContent) {
+        Message message = WireProtocol.parseMessage(rawMessageContent);
+        if (message == null) {
+            System.out.println("Malformed request: " + rawMessageContent);
+        }
+        return message;
+    }
+
+    /**
+     * Handles one request
+     *
+     * @param message
+     * @return the reply line, null when the request has no reply
+     */
+    public String handle(Message message) {
+        if (message == null) {
+            return null;
+        }
+        System.out.println("Received Message: " + message);
+        if ((message.getMessageType()).equals("R")) {
+            // Directly handle reads
+            String storedValue = dataStore.readData(Integer.parseInt(message.getMessageContent()));
+            return readReply(message.getMessageContent(), storedValue);
+        }
+        else if ((message.getMessageType()).equals(VERSION_QUERY) && connectionContext.getCraqReads() != null) {
+            int version = connectionContext.getCraqReads().getCommittedVersion(message.getNodeNumber(),
+                    Integer.parseInt(message.getMessageContent()));
+            return VERSION_REPLY + " " + version;
+        }
+        else if ((message.getMessageType()).equals("W")) {
+            if (!isCarried(message)) {
+                return LINE_BREAK_REPLY;
+            }
+            if (isMessageValid(message)) {
+                // Place writes in the write queue
+                return admissionReply(connectionContext.getWriteQueue().addMessageToQueue(message), message, "ACK");
+            } else {
+                return "Write Servers Unreachable. Write Failed";
+            }
+        }
+        return null;
+    }
+
+    private String readReply(String key, String storedValue) {
+        if (storedValue == null || storedValue.isEmpty()) {
+            return String.format("ERROR! Key %s not present", key);
+        }
+        return String.format("Key %s : Value %s at Server %d", key, storedValue, ConnectionContext.getNodeID());
+    }
+
+    /**
+     * Reads a key with CRAQ, locally if it is clean
+     *
+     * @param message
+     * @param replySink
+     * @return the reply if the key is clean, null if it is deferred
+     */
+    private String handleCraqRead(Message message, final ReplySink replySink) {
+        System.out.println("Received Message: " + message);
+        final String key = message.getMessageContent();
+        CraqReads craqReads = connectionContext.getCraqReads();
+        String cleanValue = craqReads.readClean(message.getNodeNumber(), Integer.parseInt(key));
+        if (cleanValue != null) {
+            return readReply(key, cleanValue);
+        }
+        craqReads.readDirty(message.getNodeNumber(), Integer.parseInt(key), new CraqReads.ReadCallback() {
+            @Override
+            public void onValue(String value) {
+                replySink.reply(readReply(key, value));
+            }
+
+            @Override
+            public void onUnavailable() {
+                replySink.reply(busyReply);
+            }
+        });
+        return null;
+    }
+
+    /**
+     * Queues a commit write, to be answered when the tail acks it
+     *
+     * @param message
+     * @param replySink
+     * @return the reply if it is known right away, null if it is deferred
+     */
+    private String handleCommitWrite(Message message, final ReplySink replySink) {
+        System.out.println("Received Message: " + message);
+        if (!isCarried(message)) {
+            return LINE_BREAK_REPLY;
+        }
+        if (!isMessageValid(message)) {
+            return "Write Servers Unreachable. Write Failed";
+        }
+        Message write = new Message("W", message.getMessageOrderNo(), message.getNodeNumber(),
+                message.getMessageContent());
+        CommitTracker.Waiter waiter = new CommitTracker.Waiter() {
+            @Override
+            protected void onCommit(int version) {
+                replySink.reply("COMMITTED " + version);
+            }
+
+            @Override
+            protected void onTimeout() {
+                replySink.reply("TIMEOUT");
+            }
+        };
+        write.setCommitWaiter(waiter);
+        CommitTracker commitTracker = connectionContext.getCommitTracker();
+        commitTracker.register(waiter);
+        String reply = admissionReply(connectionContext.getWriteQueue().addMessageToQueue(write), write, null);
+        if (reply != null) {
+            commitTracker.cancel(waiter);
+        }
+        return reply;
+    }
+
+    /**
+     * Reply to a write offered to the write queue
+     *
+     * @param admission
+     * @param message
+     * @param queuedReply reply when the write was queued
+     * @return
+     */
+    private String admissionReply(WriteReorderBuffer.Admission admission, Message message, String queuedReply) {
+        switch (admission) {
+            case QUEUED:
+                return queuedReply;
+            case LATE:
+                return String.format("ERROR! Write %d arrived after its turn. Write Failed",
+                        message.getMessageOrderNo());
+            default:
+                return busyReply;
+        }
+    }
+
+    /**
+     * Tags deferred replies with the id of their request
+     */
+    private static final class TaggedReplySink implements ReplySink {
+        private final String requestId;
+        private final ReplySink replySink;
+
+        TaggedReplySink(String requestId, ReplySink replySink) {
+            this.requestId = requestId;
+            this.replySink = replySink;
+        }
+
+        @Override
+        public void reply(String reply) {
+            replySink.reply(requestId + " " + reply);
+        }
+    }
+
+    /**
+     * True if the ring links of this node can carry the write. A value sent in
+     * a binary frame may hold line breaks, which a text link cannot carry.
+     *
+     * @param message
+     * @return
+     */
+    private static boolean isCarried(Message message) {
+        return WireProtocol.isBinaryConfigured() || !WireProtocol.hasLineBreak(message.getMessageContent());
+    }
+
+    /**
+     * Checks the validity of a message for delivery
+     * @param message
+     * @return
+     */
+    private boolean isMessageValid(Message message) {
+        int currentNodeId = ConnectionContext.getNodeID();
+        // A client connection must be to the first or second server only!
+        int successorNode = connectionContext.getSuccessor();
+        int primaryNode = message.getNodeNumber();
+        if (primaryNode < 0 || primaryNode >= connectionContext.getMaxServers()) {
+            return false;
+        }
+        int secondaryNode = (primaryNode + 1) % (connectionContext.getMaxServers());
+        int tertiaryNode = (primaryNode + 2) % (connectionContext.getMaxServers());
+        boolean output = false;
+        if (isValidSuccessor(currentNodeId, successorNode, primaryNode, secondaryNode, tertiaryNode)) {
+            output = true;
+        }
+        System.out.println("isMessageValid: " + output);
+        return output;
+    }
+
+    /**
+     * Accesses if the successor currently set is viable or not
+     * @param currentNodeId
+     * @param successorNode
+     * @param primaryNode
+     * @param secondaryNode
+     * @param tertiaryNode
+     * @return
+     */
+    private boolean isValidSuccessor(int currentNodeId, int successorNode, int primaryNode, int secondaryNode, int tertiaryNode) {
+        return ((currentNodeId == primaryNode && (successorNode == secondaryNode || successorNode == tertiaryNode)) || (currentNodeId == secondaryNode && successorNode == tertiaryNode));
+    }
+}
@@ -0,0 +1,259 @@
+package Server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tracks, at the head of every chain, which writes are on all replicas. The
+ * tail of a chain acknowledges the writes it applied with a
+ * "T,version,partition," message that travels back up the chain. Acks are
+ * cumulative, an ack for version v commits every write of the partition up to
+ * v, so the tail sends one for a run of writes and many writes can be in flight
+ * at once.
+ *
+ * At most commitWindow writes of a partition are in flight; the worker of the
+ * partition waits for acks before applying more. If no ack arrives within
+ * commitTimeoutMillis, because a replica left the chain with writes in flight,
+ * the window starts over from the writes applied so far.
+ *
+ * Clients that asked to be answered on commit are registered as waiters and
+ * answered when the ack arrives, or told that it timed out after
+ * commitTimeoutMillis.
+ */
+public class CommitTracker {
+    private static final ScheduledThreadPoolExecutor TIMEOUTS = new ScheduledThreadPoolExecutor(1,
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "commit-timeouts");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    static {
+        TIMEOUTS.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * A client waiting for a write to commit. Answered exactly once, either on
+     * commit or on timeout.
+     */
+    public abstract static class Waiter {
+        private final AtomicBoolean done = new AtomicBoolean();
+        private volatile ScheduledFuture<?> timeout;
+
+        protected abstract void onCommit(int version);
+
+        protected abstract void onTimeout();
+
+        private void commit(int version) {
+            if (done.compareAndSet(false, true)) {
+                ScheduledFuture<?> pendingTimeout = timeout;
+                if (pendingTimeout != null) {
+                    pendingTimeout.cancel(false);
+                }
+                onCommit(version);
+            }
+        }
+
+        private void expire() {
+            if (done.compareAndSet(false, true)) {
+                onTimeout();
+            }
+        }
+    }
+
+    private static final class Partition {
+        private int applied;
+        private int committed;
+        // Writes before this one are not counted in the window any more
+        private int windowStart;
+        private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+        private final ArrayDeque<Integer> waiterVersions = new ArrayDeque<>();
+    }
+
+    private final Partition[] partitions;
+    private final int window;
+    private final long timeoutMillis;
+    private final CraqReads craqReads;
+
+    /**
+     * @param partitionCount
+     * @param craqReads      told of every commit, may be null
+     */
+    public CommitTracker(int partitionCount, CraqReads craqReads) {
+        this.partitions = new Partition[partitionCount];
+        for (int i = 0; i < partitionCount; i++) {
+            partitions[i] = new Partition();
+        }
+        this.window = Math.max(1, ConnectionContext.getServerProperty("commitWindow", 1024));
+        this.timeoutMillis = ConnectionContext.getServerProperty("commitTimeoutMillis", 2000);
+        this.craqReads = craqReads;
+    }
+
+    /**
+     * Starts the timeout of a waiter, before its write is queued
+     *
+     * @param waiter
+     */
+    public void register(final Waiter waiter) {
+        waiter.timeout = TIMEOUTS.schedule(new Runnable() {
+            @Override
+            public void run() {
+                waiter.expire();
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the timeout of a waiter whose write was not queued after all; it
+     * is not answered
+     *
+     * @param waiter
+     */
+    public void cancel(Waiter waiter) {
+        if (waiter.done.compareAndSet(false, true)) {
+            ScheduledFuture<?> pendingTimeout = waiter.timeout;
+            if (pendingTimeout != null) {
+                pendingTimeout.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Waits until the partition has room for another write in flight
+     *
+     * @param partition
+     * @throws InterruptedException
+     */
+    public void awaitWindow(int partition) throws InterruptedException {
+        Partition state = partitions[partition];
+        synchronized (state) {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (inFlight(state) >= window) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    System.out.println(String.format("No acks for partition %d up to v%d, restarting its window",
+                            partition, state.applied));
+                    state.windowStart = state.applied;
+                    dropAnswered(state);
+                    break;
+                }
+                state.wait(remaining);
+            }
+        }
+    }
+
+    /**
+     * Records a write applied at the head
+     *
+     * @param partition
+     * @param version    partition version of the write
+     * @param waiter     client waiting for it to commit, may be null
+     * @param replicated false if the write has no replica to go to, it is then
+     *                   committed right away
+     */
+    public void applied(int partition, int version, Waiter waiter, boolean replicated) {
+        Partition state = partitions[partition];
+        synchronized (state) {
+            if (state.applied == 0) {
+                // Versions carry on from the recovered state, count from here
+                state.windowStart = version - 1;
+            }
+            state.applied = Math.max(state.applied, version);
+            if (waiter != null && replicated && version > state.committed) {
+                state.waiters.add(waiter);
+                state.waiterVersions.add(version);
+                waiter = null;
+            }
+        }
+        if (!replicated) {
+            acknowledge(partition, version);
+        }
+        if (waiter != null) {
+            waiter.commit(version);
+        }
+    }
+
+    /**
+     * Records an ack from the tail: every write of the partition up to the
+     * version is on all replicas
+     *
+     * @param partition
+     * @param version
+     */
+    public void acknowledge(int partition, int version) {
+        Partition state = partitions[partition];
+        List<Waiter> committedWaiters = null;
+        List<Integer> committedVersions = null;
+        synchronized (state) {
+            if (version <= state.committed) {
+                return;
+            }
+            state.committed = version;
+            while (!state.waiterVersions.isEmpty() && state.waiterVersions.peek() <= version) {
+                if (committedWaiters == null) {
+                    committedWaiters = new ArrayList<>();
+                    committedVersions = new ArrayList<>();
+                }
+                committedWaiters.add(state.waiters.poll());
+                committedVersions.add(state.waiterVersions.poll());
+            }
+            state.notifyAll();
+        }
+        if (craqReads != null) {
+            craqReads.commit(partition, version);
+        }
+        if (committedWaiters != null) {
+            // Answered outside the lock, the replies go out on client connections
+            for (int i = 0; i < committedWaiters.size(); i++) {
+                committedWaiters.get(i).commit(committedVersions.get(i));
+            }
+        }
+    }
+
+    /**
+     * Applied, committed and in-flight writes of every partition
+     *
+     * @return
+     */
+    public String getStats() {
+        StringBuilder stats = new StringBuilder("Commits:");
+        for (int i = 0; i < partitions.length; i++) {
+            Partition state = partitions[i];
+            synchronized (state) {
+                stats.append(String.format("%n  partition %d: applied v%d, committed v%d, %d in flight, %d waiting",
+                        i, state.applied, state.committed, inFlight(state), state.waiters.size()));
+            }
+        }
+        return stats.toString();
+    }
+
+    /**
+     * Forgets the waiters that were already told their write timed out
+     */
+    private static void dropAnswered(Partition state) {
+        Iterator<Waiter> waiters = state.waiters.iterator();
+        Iterator<Integer> versions = state.waiterVersions.iterator();
+        while (waiters.hasNext()) {
+            Waiter waiter = waiters.next();
+            versions.next();
+            if (waiter.done.get()) {
+                waiters.remove();
+                versions.remove();
+            }
+        }
+    }
+
+    private static int inFlight(Partition state) {
+        return state.applied - Math.max(state.committed, state.windowStart);
+    }
+}
@@ -1,12 +1,8 @@
 package Server;
 
-import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
@@ -23,13 +19,20 @@ public class ConnectionContext {
     private static final HashMap<Integer, InetAddress> nodeIPMapping = new HashMap<>();
     private static Integer port;
     private static Integer MAX_SERVERS;
+    private static final Properties serverProperties = new Properties();
     private ServerSocket serverSocket;
     private ServerSocket clientSocketServer;
     private ConcurrentHashMap<Integer, Socket> connectionHash = new ConcurrentHashMap<>();
-    private ConcurrentHashMap<Integer, BufferedReader> inputReaderHash = new ConcurrentHashMap<>();
-    private ConcurrentHashMap<Integer, PrintWriter> outputWriterHash = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<Integer, MessageReader> inputReaderHash = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<Integer, MessageWriter> outputWriterHash = new ConcurrentHashMap<>();
     private DataStore dataStore;
     private WriteQueue writeQueue;
+    private CommitTracker commitTracker;
+    private AntiEntropy antiEntropy;
+    private HintedHandoff hintedHandoff;
+    private FanOutReplicator fanOutReplicator;
+    private CraqReads craqReads;
+    private ConcurrentHashMap<Integer, DiffStream> diffStreams = new ConcurrentHashMap<>();
     private volatile Neighbors neighbors = new Neighbors();
     private AtomicBoolean acceptConnections = new AtomicBoolean(true);
     private AtomicBoolean enableServerListener = new AtomicBoolean(true);
@@ -57,13 +60,46 @@ public class ConnectionContext {
                 port = Integer.parseInt(readProps.getProperty(key));
             } else if (key.startsWith("serverCount")) {
                 MAX_SERVERS = Integer.parseInt(readProps.getProperty(key));
-            } else {
+            } else if (key.matches("\\d+")) {
                 nodeIPMapping.put(Integer.parseInt(key), InetAddress.getByName(readProps.getProperty(key)));
             }
         }
+        serverProperties.putAll(readProps);
         System.out.println(nodeIPMapping);
     }
 
+    /**
+     * Returns a tuning property from the server properties file, or the default
+     * value when it is not set.
+     * 
+     * @param key
+     * @param defaultValue
+     * @return
+     */
+    public static String getServerProperty(String key, String defaultValue) {
+        return serverProperties.getProperty(key, defaultValue).trim();
+    }
+
+    /**
+     * Integer variant of getServerProperty
+     * 
+     * @param key
+     * @param defaultValue
+     * @return
+     */
+    public static int getServerProperty(String key, int defaultValue) {
+        String value = serverProperties.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for property " + key + ": " + value + ". Using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
     /**
      * Static method to determine the current node and extract its node ID.
      * 
@@ -178,16 +214,16 @@ public class ConnectionContext {
 
     // Placeholder: Methods to add individual input and output streams. Not used;
     // for extensibility.
-    public void addInputReader(int inputNodeId, BufferedReader inputReader) {
+    public void addInputReader(int inputNodeId, MessageReader inputReader) {
         inputReaderHash.put(inputNodeId, inputReader);
     }
 
-    public BufferedReader getInputReader(int inputNodeId) throws IOException {
-        BufferedReader inputReader = inputReaderHash.get(inputNodeId);
+    public MessageReader getInputReader(int inputNodeId) throws IOException {
+        MessageReader inputReader = inputReaderHash.get(inputNodeId);
         System.out.println("Getting the input reader");
         if (inputReader == null) {
             Socket targetSocket = connectionHash.get(inputNodeId);
-            inputReader = new BufferedReader(new InputStreamReader(targetSocket.getInputStream()));
+            inputReader = new MessageReader(targetSocket.getInputStream());
             addInputReader(inputNodeId, inputReader);
         }
         System.out.println("The input reader is " + inputReader);
@@ -195,16 +231,16 @@ public class ConnectionContext {
     }
 
     // Placeholder: Methods to add individual input and output streams
-    public void addOutputWriter(int outputNodeId, PrintWriter outputWriter) {
+    public void addOutputWriter(int outputNodeId, MessageWriter outputWriter) {
         outputWriterHash.put(outputNodeId, outputWriter);
     }
 
     // Method to get the stored output writers
-    public PrintWriter getOutputWriter(int outputNodeId) throws IOException {
-        PrintWriter outputWriter = outputWriterHash.get(outputNodeId);
+    public MessageWriter getOutputWriter(int outputNodeId) throws IOException {
+        MessageWriter outputWriter = outputWriterHash.get(outputNodeId);
         if (outputWriter == null) {
             Socket targetSocket = connectionHash.get(outputNodeId);
-            outputWriter = new PrintWriter(new OutputStreamWriter(targetSocket.getOutputStream()), true);
+            outputWriter = new MessageWriter(targetSocket.getOutputStream());
             addOutputWriter(outputNodeId, outputWriter);
         }
         return outputWriter;
@@ -226,10 +262,10 @@ public class ConnectionContext {
     }
 
     /**
-     * Queue to track all write requests
+     * Queue to track all write requests, split by partition
      */
     public void setWriteQueue() {
-        this.writeQueue = new WriteQueue();
+        this.writeQueue = new WriteQueue(getMaxServers());
     }
 
     /**
@@ -240,6 +276,76 @@ public class ConnectionContext {
         return this.writeQueue;
     }
 
+    /**
+     * Writes in flight down the chains this node heads, by partition
+     */
+    public void setCommitTracker() {
+        this.commitTracker = new CommitTracker(getMaxServers(), craqReads);
+    }
+
+    public CommitTracker getCommitTracker() {
+        return this.commitTracker;
+    }
+
+    /**
+     * Anti-entropy task, answers Merkle exchanges on the ring links
+     */
+    public void setAntiEntropy(AntiEntropy antiEntropy) {
+        this.antiEntropy = antiEntropy;
+    }
+
+    public AntiEntropy getAntiEntropy() {
+        return this.antiEntropy;
+    }
+
+    /**
+     * Hints kept for replicas that left the ring
+     */
+    public void setHintedHandoff(HintedHandoff hintedHandoff) {
+        this.hintedHandoff = hintedHandoff;
+    }
+
+    public HintedHandoff getHintedHandoff() {
+        return this.hintedHandoff;
+    }
+
+    /**
+     * Links from the head of a chain to both replicas, null in the chain topology
+     */
+    public void setFanOutReplicator(FanOutReplicator fanOutReplicator) {
+        this.fanOutReplicator = fanOutReplicator;
+    }
+
+    public FanOutReplicator getFanOutReplicator() {
+        return this.fanOutReplicator;
+    }
+
+    /**
+     * Clean and dirty keys for CRAQ reads, null when reads are local
+     */
+    public void setCraqReads(CraqReads craqReads) {
+        this.craqReads = craqReads;
+    }
+
+    public CraqReads getCraqReads() {
+        return this.craqReads;
+    }
+
+    /**
+     * Diff streams in progress, by the node they are sent to
+     */
+    public DiffStream putDiffStream(int targetNodeId, DiffStream diffStream) {
+        return diffStreams.put(targetNodeId, diffStream);
+    }
+
+    public DiffStream getDiffStream(int targetNodeId) {
+        return diffStreams.get(targetNodeId);
+    }
+
+    public void removeDiffStream(int targetNodeId, DiffStream diffStream) {
+        diffStreams.remove(targetNodeId, diffStream);
+    }
+
     /**
      * Class to define the predecessor and successor of a node in the server ring
      */
@@ -319,6 +425,9 @@ public class ConnectionContext {
         for (Map.Entry<Integer, Socket> entry : connectionHash.entrySet()) {
             entry.getValue().close();
         }
+        if (fanOutReplicator != null) {
+            fanOutReplicator.close();
+        }
         // Shutting down the server
         serverSocket.close();
     }
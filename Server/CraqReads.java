@@ -0,0 +1,344 @@
+package Server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * CRAQ style reads (readConsistency=craq): every replica of a partition serves
+ * strongly consistent reads, not only the tail.
+ *
+ * A replica that is not the tail records every write it applies as dirty until
+ * an ack from the tail (see CommitTracker) covers its version, keeping the last
+ * committed value of the key and the values of its dirty writes. A key without
+ * dirty writes is clean and read locally. For a dirty key the replica asks the
+ * commit authority of the partition only for the committed version of the key,
+ * a "V,0,partition,key" request on its client port, and answers with its own
+ * copy of that version. The authority is the tail (partition + 2) in the chain
+ * topology and the head in the fan-out topology, where the replicas learn of
+ * commits from the head. The tail applies only committed writes, so its keys
+ * are always clean.
+ *
+ * Dirty reads are answered from craqQueryThreads threads, on a new connection
+ * per query. If the authority cannot be reached the read is answered BUSY and
+ * the client tries again. The blocking client listener serves one connection
+ * at a time, so the queries need the nio listener or virtual threads.
+ */
+public class CraqReads {
+    private static final class DirtyKey {
+        private int cleanVersion;
+        private String cleanValue;
+        // Dirty writes in version order
+        private final ArrayDeque<Integer> versions = new ArrayDeque<>();
+        private final ArrayDeque<String> values = new ArrayDeque<>();
+        // Writes recorded but not applied yet, their version is not known
+        private int applying;
+    }
+
+    private static final class Partition {
+        private int committed;
+        private final Map<Integer, DirtyKey> dirtyKeys = new HashMap<>();
+        // Keys of the dirty writes in version order, to clean them on commit
+        private final ArrayDeque<Integer> dirtyOrder = new ArrayDeque<>();
+        private final ArrayDeque<Integer> dirtyOrderVersions = new ArrayDeque<>();
+    }
+
+    /**
+     * Receives the value of a dirty read
+     */
+    public interface ReadCallback {
+        /**
+         * @param value the committed value, "" if the key is not present
+         */
+        void onValue(String value);
+
+        void onUnavailable();
+    }
+
+    private ConnectionContext connectionContext;
+    private DataStore dataStore;
+    private final Partition[] partitions;
+    private final ExecutorService dirtyReads;
+    private int queryTimeoutMillis;
+
+    public CraqReads(ConnectionContext connectionContext) {
+        this.connectionContext = connectionContext;
+        this.dataStore = connectionContext.getDataStore();
+        this.partitions = new Partition[connectionContext.getMaxServers()];
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i] = new Partition();
+        }
+        this.queryTimeoutMillis = ConnectionContext.getServerProperty("craqQueryTimeoutMillis", 1000);
+        this.dirtyReads = Executors.newFixedThreadPool(
+                Math.max(1, ConnectionContext.getServerProperty("craqQueryThreads", 4)), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "craq-reads");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * True when the server properties select CRAQ reads
+     *
+     * @return
+     */
+    public static boolean isConfigured() {
+        return "craq".equalsIgnoreCase(ConnectionContext.getServerProperty("readConsistency", "local"));
+    }
+
+    /**
+     * Marks a key dirty before a replica that is not the tail applies a write
+     * to it, so no read sees the value before it is recorded
+     *
+     * @param partition
+     * @param key
+     */
+    public void beginWrite(int partition, int key) {
+        Partition state = partitions[partition];
+        synchronized (state) {
+            DirtyKey dirtyKey = state.dirtyKeys.get(key);
+            if (dirtyKey == null) {
+                dirtyKey = new DirtyKey();
+                dirtyKey.cleanVersion = dataStore.getKeyVersion(key, partition);
+                dirtyKey.cleanValue = dataStore.readData(key);
+                state.dirtyKeys.put(key, dirtyKey);
+            }
+            dirtyKey.applying++;
+        }
+    }
+
+    /**
+     * Records the version of a write started with beginWrite, once applied
+     *
+     * @param partition
+     * @param key
+     * @param version
+     * @param value
+     */
+    public void endWrite(int partition, int key, int version, String value) {
+        Partition state = partitions[partition];
+        synchronized (state) {
+            DirtyKey dirtyKey = state.dirtyKeys.get(key);
+            dirtyKey.applying--;
+            dirtyKey.versions.add(version);
+            dirtyKey.values.add(value);
+            state.dirtyOrder.add(key);
+            state.dirtyOrderVersions.add(version);
+            if (version <= state.committed) {
+                // The ack overtook the write
+                clean(state, state.committed);
+            }
+        }
+    }
+
+    /**
+     * Ends a write started with beginWrite that was not applied
+     *
+     * @param partition
+     * @param key
+     */
+    public void abortWrite(int partition, int key) {
+        Partition state = partitions[partition];
+        synchronized (state) {
+            DirtyKey dirtyKey = state.dirtyKeys.get(key);
+            dirtyKey.applying--;
+            if (dirtyKey.versions.isEmpty() && dirtyKey.applying == 0) {
+                state.dirtyKeys.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Every write of the partition up to the version is on all replicas
+     *
+     * @param partition
+     * @param version
+     */
+    public void commit(int partition, int version) {
+        Partition state = partitions[partition];
+        synchronized (state) {
+            if (version > state.committed) {
+                state.committed = version;
+                clean(state, version);
+            }
+        }
+    }
+
+    /**
+     * Reads a key if it is clean
+     *
+     * @param partition
+     * @param key
+     * @return the value, "" if the key is not present, null if it is dirty
+     */
+    public String readClean(int partition, int key) {
+        Partition state = partitions[partition];
+        synchronized (state) {
+            if (state.dirtyKeys.containsKey(key)) {
+                return null;
+            }
+            String value = dataStore.readData(key);
+            return (value == null) ? "" : value;
+        }
+    }
+
+    /**
+     * Version of a key known to be committed at this node, the answer to a
+     * version query
+     *
+     * @param partition
+     * @param key
+     * @return
+     */
+    public int getCommittedVersion(int partition, int key) {
+        Partition state = partitions[partition];
+        synchronized (state) {
+            DirtyKey dirtyKey = state.dirtyKeys.get(key);
+            return (dirtyKey == null) ? dataStore.getKeyVersion(key, partition) : dirtyKey.cleanVersion;
+        }
+    }
+
+    /**
+     * Reads a dirty key: asks the commit authority for its committed version
+     * and answers with the local copy of that version
+     *
+     * @param partition
+     * @param key
+     * @param callback
+     */
+    public void readDirty(final int partition, final int key, final ReadCallback callback) {
+        dirtyReads.execute(new Runnable() {
+            @Override
+            public void run() {
+                int version = queryCommittedVersion(partition, key);
+                String value = (version < 0) ? null : readVersion(partition, key, version);
+                if (value == null) {
+                    callback.onUnavailable();
+                } else {
+                    callback.onValue(value);
+                }
+            }
+        });
+    }
+
+    /**
+     * Dirty and committed state of every partition
+     *
+     * @return
+     */
+    public String getStats() {
+        StringBuilder stats = new StringBuilder("CRAQ reads:");
+        for (int i = 0; i < partitions.length; i++) {
+            Partition state = partitions[i];
+            synchronized (state) {
+                stats.append(String.format("%n  partition %d: committed v%d, %d dirty keys", i, state.committed,
+                        state.dirtyKeys.size()));
+            }
+        }
+        return stats.toString();
+    }
+
+    /**
+     * Local copy of a version of a key
+     *
+     * @return the value, "" if the key was not present, null if this node does
+     *         not hold that version
+     */
+    private String readVersion(int partition, int key, int version) {
+        Partition state = partitions[partition];
+        synchronized (state) {
+            DirtyKey dirtyKey = state.dirtyKeys.get(key);
+            if (dirtyKey == null) {
+                if (dataStore.getKeyVersion(key, partition) != version) {
+                    return null;
+                }
+                String value = dataStore.readData(key);
+                return (value == null) ? "" : value;
+            }
+            if (dirtyKey.cleanVersion == version) {
+                return (dirtyKey.cleanValue == null) ? "" : dirtyKey.cleanValue;
+            }
+            Iterator<String> values = dirtyKey.values.iterator();
+            for (Integer dirtyVersion : dirtyKey.versions) {
+                String value = values.next();
+                if (dirtyVersion == version) {
+                    return value;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Drops the dirty writes up to the committed version, the latest of them
+     * becomes the clean value of its key
+     */
+    private static void clean(Partition state, int committed) {
+        while (!state.dirtyOrderVersions.isEmpty() && state.dirtyOrderVersions.peek() <= committed) {
+            state.dirtyOrderVersions.poll();
+            Integer key = state.dirtyOrder.poll();
+            DirtyKey dirtyKey = state.dirtyKeys.get(key);
+            if (dirtyKey == null) {
+                continue;
+            }
+            while (!dirtyKey.versions.isEmpty() && dirtyKey.versions.peek() <= committed) {
+                dirtyKey.cleanVersion = dirtyKey.versions.poll();
+                dirtyKey.cleanValue = dirtyKey.values.poll();
+            }
+            if (dirtyKey.versions.isEmpty() && dirtyKey.applying == 0) {
+                state.dirtyKeys.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Asks the commit authority of the partition for the committed version of
+     * a key, trying the other replica if it cannot be reached
+     *
+     * @return the version, -1 if no authority answered
+     */
+    private int queryCommittedVersion(int partition, int key) {
+        int totalServers = connectionContext.getMaxServers();
+        int currNodeId = ConnectionContext.getNodeID();
+        int[] authorities = FanOutReplicator.isConfigured()
+                ? new int[] { partition, (partition + 1) % totalServers }
+                : new int[] { (partition + 2) % totalServers, (partition + 1) % totalServers };
+        for (int authority : authorities) {
+            if (authority == currNodeId) {
+                continue;
+            }
+            InetAddress address = connectionContext.getNodeIPFromNodeNumber(authority);
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(address, ClientListener.CLIENT_LISTENER_PORT), queryTimeoutMillis);
+                socket.setSoTimeout(queryTimeoutMillis);
+                socket.setTcpNoDelay(true);
+                OutputStream out = socket.getOutputStream();
+                out.write(String.format("V,0,%d,%d\n", partition, key).getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                String reply = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                        StandardCharsets.UTF_8)).readLine();
+                if (reply != null && reply.startsWith(ClientRequestHandler.VERSION_REPLY)) {
+                    return Integer.parseInt(reply.substring(ClientRequestHandler.VERSION_REPLY.length()).trim());
+                }
+            } catch (IOException | NumberFormatException e) {
+                System.out.println("Version query to node " + authority + " failed: " + e.getMessage());
+            }
+        }
+        return -1;
+    }
+}
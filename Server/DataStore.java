@@ -1,43 +1,331 @@
 package Server;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class DataStore {
-    private ConcurrentHashMap<Integer, String> content;
-    private ConcurrentHashMap<Integer, List<Integer>> metadata;
+    private StorageEngine content;
+    // Senders of the diff streams being received
+    private final Set<Integer> openDiffStreams = new HashSet<>();
+    private ConcurrentHashMap<Integer, PartitionIndex> metadata;
+    private WriteAheadLog writeAheadLog;
+    private SnapshotManager snapshotManager;
+    private int changeLogLimit = ConnectionContext.getServerProperty("changeLogSize", 100000);
+    private int merkleDepth = ConnectionContext.getServerProperty("merkleDepth", 10);
 
     /**
      * The data storage solution tracks the data and the metadata to easily find
-     * diffs.
+     * diffs. The storage engine is picked from the storageEngine server property.
+     * On startup the latest snapshot is loaded and the write-ahead log written
+     * after it is replayed before any new write is accepted.
      */
     public DataStore() {
-        this.content = new ConcurrentHashMap<>();
+        this(createStorageEngine(ConnectionContext.getServerProperty("storageEngine", "hashmap")));
+        String nodeName = "ringstore-" + ConnectionContext.getNodeID();
+        long replayFromGeneration = 0;
+        if (Boolean.parseBoolean(ConnectionContext.getServerProperty("snapshotEnabled", "false"))) {
+            snapshotManager = new SnapshotManager(this,
+                    new File(ConnectionContext.getServerProperty("snapshotDirectory", "./snapshots"), nodeName),
+                    ConnectionContext.getServerProperty("snapshotIntervalSeconds", 300),
+                    ConnectionContext.getServerProperty("snapshotThreads", Runtime.getRuntime().availableProcessors()));
+            try {
+                replayFromGeneration = snapshotManager.loadLatestSnapshot();
+            } catch (IOException e) {
+                System.err.println("Unable to load the latest snapshot. Starting from the write-ahead log.");
+                e.printStackTrace();
+            }
+        }
+        if (Boolean.parseBoolean(ConnectionContext.getServerProperty("walEnabled", "false"))) {
+            WriteAheadLog wal = new WriteAheadLog(new File(ConnectionContext.getServerProperty("walDirectory", "./wal")),
+                    nodeName,
+                    WriteAheadLog.SyncPolicy.fromName(ConnectionContext.getServerProperty("walSync", "group")),
+                    ConnectionContext.getServerProperty("walGroupCommitMillis", 5),
+                    ConnectionContext.getServerProperty("walGroupCommitRecords", 512));
+            try {
+                attachWriteAheadLog(wal, replayFromGeneration);
+            } catch (IOException e) {
+                System.err.println("Unable to open the write-ahead log. Running without durability.");
+                e.printStackTrace();
+            }
+        }
+        // The order of the recovered writes is not known, so a neighbour asking
+        // for anything older than the recovered versions gets a full transfer
+        for (PartitionIndex partitionIndex : metadata.values()) {
+            partitionIndex.resetChangeLog();
+        }
+    }
+
+    public DataStore(StorageEngine storageEngine) {
+        this.content = storageEngine;
         this.metadata = new ConcurrentHashMap<>();
     }
 
     /**
-     * Write data to the data storage
+     * Replays the log from the given generation into content and metadata and
+     * then logs every later write to it.
+     * 
+     * @param wal
+     * @param fromGeneration
+     * @throws IOException
+     */
+    public void attachWriteAheadLog(WriteAheadLog wal, long fromGeneration) throws IOException {
+        long start = System.currentTimeMillis();
+        int replayed = wal.replay(new WriteAheadLog.RecordVisitor() {
+            @Override
+            public void visit(int partition, int key, int version, String value) {
+                applyWrite(key, value, partition, version);
+            }
+        }, fromGeneration);
+        System.out.println(String.format("Replayed %d WAL records in %d ms", replayed, System.currentTimeMillis() - start));
+        wal.open(fromGeneration);
+        this.writeAheadLog = wal;
+    }
+
+    /**
+     * Starts the periodic checkpoint thread when snapshots are enabled
+     */
+    public void startCheckpointing() {
+        if (snapshotManager != null) {
+            Thread checkpointThread = new Thread(snapshotManager, "checkpointer");
+            checkpointThread.setDaemon(true);
+            checkpointThread.start();
+        }
+    }
+
+    /**
+     * Rolls the write-ahead log to a new generation ahead of a checkpoint
+     * 
+     * @return the new generation, or 0 when no log is attached
+     * @throws IOException
+     */
+    long rollWriteAheadLog() throws IOException {
+        return (writeAheadLog == null) ? 0 : writeAheadLog.roll();
+    }
+
+    /**
+     * Drops the log generations covered by a completed checkpoint
+     * 
+     * @param generation
+     */
+    void truncateWriteAheadLog(long generation) {
+        if (writeAheadLog != null) {
+            writeAheadLog.deleteGenerationsBefore(generation);
+        }
+    }
+
+    /**
+     * Stops checkpointing, then flushes and closes the write-ahead log, if any,
+     * and stops the segment storage engine
+     */
+    public void close() {
+        if (snapshotManager != null) {
+            snapshotManager.stop();
+        }
+        if (writeAheadLog != null) {
+            writeAheadLog.close();
+        }
+        if (content instanceof SegmentStorage) {
+            ((SegmentStorage) content).stop();
+        }
+    }
+
+    /**
+     * Creates the storage engine matching the configured name
+     * 
+     * @param engineName
+     * @return
+     */
+    private static StorageEngine createStorageEngine(String engineName) {
+        switch (engineName.toLowerCase()) {
+            case "primitive":
+                System.out.println("Using primitive int-keyed storage engine");
+                return new IntHashStorage();
+            case "segments":
+                try {
+                    SegmentStorage segmentStorage = new SegmentStorage(
+                            new File(ConnectionContext.getServerProperty("segmentDirectory", "./segments"),
+                                    "ringstore-" + ConnectionContext.getNodeID()),
+                            ConnectionContext.getServerProperty("segmentSizeMB", 64) * 1024L * 1024,
+                            Double.parseDouble(ConnectionContext.getServerProperty("segmentCompactionThreshold", "0.5")),
+                            ConnectionContext.getServerProperty("segmentCompactionSeconds", 30));
+                    segmentStorage.startCompaction();
+                    System.out.println("Using memory-mapped segment storage engine");
+                    return segmentStorage;
+                } catch (IOException e) {
+                    System.err.println("Unable to create segment storage. Falling back to hashmap.");
+                    e.printStackTrace();
+                    return new HashMapStorage();
+                }
+            case "hashmap":
+                return new HashMapStorage();
+            default:
+                System.err.println("Unknown storage engine " + engineName + ". Falling back to hashmap.");
+                return new HashMapStorage();
+        }
+    }
+
+    /**
+     * Write data to the data storage at the head of the chain. The write is
+     * numbered with the next version of its partition.
      * 
      * @param key
      * @param content
      * @param hashServer
+     * @return the partition version of the write
      */
-    public void writeData(int key, String content, int hashServer) {
-        this.content.put(key, content);
-        System.out.println(String.format("Values Gotten: %d %s %d", key, content, hashServer));
-        // Synchronize on metadata to ensure thread safety for list mutation
-        synchronized (metadata) {
-            List<Integer> keyList = metadata.get(hashServer);
-            if (keyList == null) {
-                keyList = new ArrayList<Integer>();
-                metadata.put(hashServer, keyList);
+    public int writeData(int key, String content, int hashServer) {
+        PartitionIndex partitionIndex = getPartitionIndex(hashServer);
+        int version;
+        // Applied before it is logged so that a write logged ahead of a WAL roll
+        // is always visible to the checkpoint taken after that roll
+        synchronized (partitionIndex) {
+            this.content.put(key, content);
+            version = partitionIndex.recordNext(key, MerkleTree.entryHash(key, content));
+        }
+        logWrite(key, content, hashServer, version);
+        System.out.println(String.format("Values Gotten: %d %s %d v%d", key, content, hashServer, version));
+        return version;
+    }
+
+    /**
+     * Write data to the data storage on a replica. The version is the one
+     * assigned by the head of the chain. A write that is not newer than the
+     * local copy of the key is skipped: with fan-out replication the same write
+     * can also come down the chain, on another link, after newer writes.
+     * 
+     * @param key
+     * @param content
+     * @param hashServer
+     * @param version
+     * @return false if the write was skipped
+     */
+    public boolean writeData(int key, String content, int hashServer, int version) {
+        PartitionIndex partitionIndex = getPartitionIndex(hashServer);
+        synchronized (partitionIndex) {
+            if (partitionIndex.contains(key) && version <= partitionIndex.getKeyVersion(key)) {
+                System.out.println(String.format("Stale write skipped: %d %d v%d", key, hashServer, version));
+                return false;
             }
-            keyList.add(key);
+            applyWrite(key, content, hashServer, version);
+        }
+        logWrite(key, content, hashServer, version);
+        System.out.println(String.format("Values Gotten: %d %s %d v%d", key, content, hashServer, version));
+        return true;
+    }
+
+    /**
+     * Applies a write to content and metadata without logging it
+     * 
+     * @param key
+     * @param value
+     * @param hashServer
+     * @param version
+     */
+    private void applyWrite(int key, String value, int hashServer, int version) {
+        content.put(key, value);
+        getPartitionIndex(hashServer).record(key, version, MerkleTree.entryHash(key, value));
+    }
+
+    /**
+     * Restores an entry loaded from a snapshot
+     * 
+     * @param key
+     * @param value
+     * @param hashServer
+     * @param version
+     */
+    void restoreEntry(int key, String value, int hashServer, int version) {
+        applyWrite(key, value, hashServer, version);
+    }
+
+    /**
+     * Latest version applied to a partition
+     * 
+     * @param hashServer
+     * @return
+     */
+    public int getPartitionVersion(int hashServer) {
+        PartitionIndex partitionIndex = metadata.get(hashServer);
+        return (partitionIndex == null) ? 0 : partitionIndex.getVersion();
+    }
+
+    /**
+     * Version of the latest write of a key
+     * 
+     * @param key
+     * @param hashServer
+     * @return
+     */
+    public int getKeyVersion(int key, int hashServer) {
+        PartitionIndex partitionIndex = metadata.get(hashServer);
+        return (partitionIndex == null) ? 0 : partitionIndex.getKeyVersion(key);
+    }
+
+    /**
+     * Partitions that currently hold keys
+     * 
+     * @return
+     */
+    public Set<Integer> getPartitionNumbers() {
+        return metadata.keySet();
+    }
+
+    /**
+     * Copy of the keys of a partition
+     * 
+     * @param hashServer
+     * @return
+     */
+    public int[] getPartitionKeys(int hashServer) {
+        PartitionIndex partitionIndex = metadata.get(hashServer);
+        return (partitionIndex == null) ? new int[0] : partitionIndex.toArray();
+    }
+
+    /**
+     * Appends the write to the write-ahead log when one is attached. A failed
+     * append is reported and the write is still applied in memory.
+     * 
+     * @param key
+     * @param value
+     * @param hashServer
+     * @param version
+     */
+    private void logWrite(int key, String value, int hashServer, int version) {
+        if (writeAheadLog == null) {
+            return;
+        }
+        try {
+            writeAheadLog.append(hashServer, key, version, value);
+        } catch (IOException e) {
+            System.err.println("WAL append failed for key " + key);
+            e.printStackTrace();
         }
     }
 
+    /**
+     * Returns the key index of a partition, creating it on first use. Each
+     * partition index is locked independently.
+     * 
+     * @param hashServer
+     * @return
+     */
+    private PartitionIndex getPartitionIndex(int hashServer) {
+        PartitionIndex partitionIndex = metadata.get(hashServer);
+        if (partitionIndex == null) {
+            PartitionIndex created = new PartitionIndex(changeLogLimit, merkleDepth);
+            partitionIndex = metadata.putIfAbsent(hashServer, created);
+            if (partitionIndex == null) {
+                partitionIndex = created;
+            }
+        }
+        return partitionIndex;
+    }
+
     /**
      * Read a key value from storage
      * 
@@ -58,65 +346,226 @@ public class DataStore {
     }
 
     /**
-     * Find all the diffs (ie, keys that should be stored at the target node) that
-     * is present in storage
+     * Versions of the partitions a node replicates, in the form
+     * partition:version;partition:version;partition:version. Sent with a rejoin
+     * request so that the neighbours can reply with only the newer changes.
+     * 
+     * @param targetNode
+     * @return
+     */
+    public String getVersionVector(int targetNode) {
+        StringBuilder result = new StringBuilder();
+        for (int serverNumber : getReplicatedPartitions(targetNode)) {
+            if (result.length() > 0) {
+                result.append(";");
+            }
+            PartitionIndex partitionIndex = metadata.get(serverNumber);
+            result.append(serverNumber).append(":").append(
+                    (partitionIndex == null) ? 0 : partitionIndex.getSyncedVersion());
+        }
+        return result.toString();
+    }
+
+    /**
+     * A diff stream from a neighbour begins. The partitions of this node stop
+     * advancing their synced version until every stream being received ended.
+     * 
+     * @param sender
+     */
+    public void beginDiffStream(int sender) {
+        synchronized (openDiffStreams) {
+            openDiffStreams.add(sender);
+            for (int serverNumber : getReplicatedPartitions(ConnectionContext.getNodeID())) {
+                getPartitionIndex(serverNumber).setCatchingUp(true);
+            }
+        }
+    }
+
+    /**
+     * A diff stream from a neighbour ended with all of its chunks sent. Once no
+     * other stream is open the synced versions catch up.
+     * 
+     * @param sender
+     */
+    public void endDiffStream(int sender) {
+        synchronized (openDiffStreams) {
+            if (!openDiffStreams.remove(sender) || !openDiffStreams.isEmpty()) {
+                return;
+            }
+            for (int serverNumber : getReplicatedPartitions(ConnectionContext.getNodeID())) {
+                getPartitionIndex(serverNumber).setCatchingUp(false);
+            }
+        }
+    }
+
+    /**
+     * Forgets the streams of earlier rejoin requests before a new one. A stream
+     * cut off before its end leaves the synced versions behind, so the version
+     * vector of the new request asks for everything that stream may have
+     * missed.
+     */
+    public void abandonDiffStreams() {
+        synchronized (openDiffStreams) {
+            openDiffStreams.clear();
+        }
+    }
+
+    /**
+     * Receives the diff entries of a stream one at a time
+     */
+    public interface DiffVisitor {
+        void visit(int serverNumber, int key, int version, String value) throws IOException;
+    }
+
+    /**
+     * Streams the diffs (ie, keys that should be stored at the target node) to
+     * a visitor. For every partition listed in the version vector only the keys
+     * written after that version are sent, as long as the change log still
+     * covers it. Other partitions are sent in full. Values are read as they are
+     * visited, so the caller decides how much of the diff is held at a time.
+     * 
+     * @param targetNode
+     * @param versionVector as produced by getVersionVector, may be null
+     * @param visitor
+     * @return the number of entries sent
+     * @throws IOException
+     */
+    public int streamDiffs(int targetNode, String versionVector, DiffVisitor visitor) throws IOException {
+        Map<Integer, Integer> appliedVersions = parseVersionVector(versionVector);
+
+        int sent = 0;
+        for (int serverNumber : getReplicatedPartitions(targetNode)) {
+            PartitionIndex partitionIndex = metadata.get(serverNumber);
+            int[] contentKeys = getDiffKeys(serverNumber, partitionIndex, appliedVersions.get(serverNumber));
+            for (int key : contentKeys) {
+                String value = content.get(key);
+                if (value != null) {
+                    visitor.visit(serverNumber, key, partitionIndex.getKeyVersion(key), value);
+                    sent++;
+                }
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Partitions stored at a node: its own and the two before it
      * 
      * @param targetNode
      * @return
      */
-    public String getDiffs(int targetNode) {
+    private int[] getReplicatedPartitions(int targetNode) {
         // Static here
-        int[] potvals = new int[] {
+        return new int[] {
                 targetNode,
                 (targetNode - 1 + 7) % 7,
                 (targetNode - 2 + 7) % 7
         };
+    }
 
-        StringBuilder combinedResult = new StringBuilder();
-        for (int serverNumber : potvals) {
-            String partial = getContentPerServer(serverNumber);
-            if (!partial.isEmpty()) {
-                combinedResult.append(partial).append(":");
+    /**
+     * Parses a version vector produced by getVersionVector
+     * 
+     * @param versionVector
+     * @return versions by partition
+     */
+    static Map<Integer, Integer> parseVersionVector(String versionVector) {
+        Map<Integer, Integer> appliedVersions = new HashMap<>();
+        if (versionVector == null || versionVector.isEmpty()) {
+            return appliedVersions;
+        }
+        for (String entry : versionVector.split(";")) {
+            String[] partitionAndVersion = entry.split(":", 2);
+            try {
+                appliedVersions.put(Integer.parseInt(partitionAndVersion[0].trim()),
+                        Integer.parseInt(partitionAndVersion[1].trim()));
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                System.err.println("Invalid version entry skipped: " + entry);
             }
         }
+        return appliedVersions;
+    }
 
-        // Remove trailing comma if present
-        if (combinedResult.length() > 0) {
-            combinedResult.setLength(combinedResult.length() - 1);
+    /**
+     * Internal method to find the keys to send per server number
+     * 
+     * @param serverNumber
+     * @param partitionIndex
+     * @param sinceVersion last version applied by the receiver, null if unknown
+     * @return
+     */
+    private int[] getDiffKeys(int serverNumber, PartitionIndex partitionIndex, Integer sinceVersion) {
+        if (partitionIndex == null || partitionIndex.size() == 0) {
+            return new int[0];
         }
 
-        return combinedResult.toString();
+        int[] contentKeys = null;
+        if (sinceVersion != null) {
+            contentKeys = partitionIndex.changedSince(sinceVersion);
+        }
+        if (contentKeys == null) {
+            contentKeys = partitionIndex.toArray();
+            System.out.println(String.format("Full transfer of partition %d: %d keys", serverNumber, contentKeys.length));
+        } else {
+            System.out.println(String.format("Delta transfer of partition %d since v%d: %d keys", serverNumber,
+                    sinceVersion, contentKeys.length));
+        }
+        return contentKeys;
     }
 
     /**
-     * Internal method to find diffs per server number
+     * Hashes of the requested Merkle tree nodes of a partition, in the form
+     * node=hash;node=hash with hashes in hex. Unknown nodes are skipped.
      * 
      * @param serverNumber
+     * @param nodes
      * @return
      */
-    private String getContentPerServer(int serverNumber) {
-        List<Integer> contentKeys = metadata.get(serverNumber);
-
-        if (contentKeys == null || contentKeys.isEmpty()) {
-            return "";
+    public String getMerkleHashes(int serverNumber, int[] nodes) {
+        MerkleTree merkleTree = getPartitionIndex(serverNumber).getMerkleTree();
+        StringBuilder result = new StringBuilder();
+        for (int node : nodes) {
+            if (merkleTree.isValidNode(node)) {
+                if (result.length() > 0) {
+                    result.append(";");
+                }
+                result.append(node).append("=").append(Long.toHexString(merkleTree.getHash(node)));
+            }
         }
+        return result.toString();
+    }
 
-        StringBuilder result = new StringBuilder();
-        for (Integer key : contentKeys) {
+    /**
+     * Merkle tree of a partition
+     * 
+     * @param serverNumber
+     * @return
+     */
+    public MerkleTree getMerkleTree(int serverNumber) {
+        return getPartitionIndex(serverNumber).getMerkleTree();
+    }
+
+    /**
+     * Adds the diff entry of every key in the given Merkle leaves of a
+     * partition to a chunk
+     * 
+     * @param serverNumber
+     * @param leafNodes
+     * @param diffCodec
+     */
+    public void getDiffsForLeaves(int serverNumber, Set<Integer> leafNodes, DiffCodec diffCodec) {
+        PartitionIndex partitionIndex = getPartitionIndex(serverNumber);
+        for (int key : partitionIndex.keysInLeaves(leafNodes)) {
             String value = content.get(key);
             if (value != null) {
-                result.append(serverNumber).append("-").append(key).append("=").append(value).append(":");
+                diffCodec.add(serverNumber, key, partitionIndex.getKeyVersion(key), value);
             }
         }
-
-        if (result.length() > 0) {
-            result.setLength(result.length() - 1);
-        }
-        return result.toString();
     }
 
     /**
-     * Add all the received diffs to storage
+     * Add all the received diffs to storage. Entries are of the form
+     * server-key-version=value, separated by ':'.
      * 
      * @param input
      */
@@ -126,34 +575,68 @@ public class DataStore {
 
         String[] entries = input.split(":");
         for (String entry : entries) {
-            // Split into "serverNo-key" and "value"
+            // Split into "serverNo-key-version" and "value"
             String[] keyValue = entry.split("=", 2);
             if (keyValue.length != 2)
                 continue;
 
-            String[] serverAndKey = keyValue[0].split("-", 2);
-            if (serverAndKey.length != 2)
+            String[] serverAndKey = keyValue[0].split("-", 3);
+            if (serverAndKey.length < 2)
                 continue;
 
             try {
                 int serverNo = Integer.parseInt(serverAndKey[0]);
                 int contentKey = Integer.parseInt(serverAndKey[1]);
-                String contentValue = keyValue[1];
-
-                // Update content map
-                content.put(contentKey, contentValue);
-
-                // Update metadata map
-                List<Integer> keyList = metadata.get(serverNo);
-                if (keyList == null) {
-                    keyList = new ArrayList<Integer>();
-                    metadata.put(serverNo, keyList);
-                }
-                keyList.add(contentKey);
+                int version = (serverAndKey.length == 3) ? Integer.parseInt(serverAndKey[2]) : 0;
+                applyDiff(serverNo, contentKey, version, keyValue[1]);
             } catch (NumberFormatException e) {
                 System.err.println("Invalid entry skipped: " + entry);
             }
         }
     }
 
+    /**
+     * Applies one received diff entry, unless the local copy is newer. After a
+     * failover two replicas may hold different values under the same version;
+     * the value with the larger entry hash (then the larger string) is kept on
+     * both, so that anti-entropy converges instead of swapping them.
+     * 
+     * @param serverNo
+     * @param contentKey
+     * @param version
+     * @param contentValue
+     */
+    public void applyDiff(int serverNo, int contentKey, int version, String contentValue) {
+        PartitionIndex partitionIndex = getPartitionIndex(serverNo);
+        // Checked and applied under the partition lock, so that no write slips in between
+        synchronized (partitionIndex) {
+            int localVersion = partitionIndex.getKeyVersion(contentKey);
+            // Never let an older copy overwrite a newer one
+            if (version < localVersion) {
+                return;
+            }
+            if (version == localVersion) {
+                String localValue = content.get(contentKey);
+                if (localValue != null && !winsTie(contentKey, contentValue, localValue)) {
+                    return;
+                }
+            }
+            // Update content and metadata
+            applyWrite(contentKey, contentValue, serverNo, version);
+        }
+        logWrite(contentKey, contentValue, serverNo, version);
+    }
+
+    /**
+     * Deterministic choice between two values of a key with the same version
+     */
+    private static boolean winsTie(int key, String value, String localValue) {
+        if (value.equals(localValue)) {
+            return false;
+        }
+        long hash = MerkleTree.entryHash(key, value);
+        long localHash = MerkleTree.entryHash(key, localValue);
+        return (hash != localHash) ? hash > localHash : value.compareTo(localValue) > 0;
+    }
+
 }
@@ -0,0 +1,240 @@
+package Server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Builds diff chunks in one of the two diff encodings and decodes binary ones.
+ *
+ * TEXT is the original server-key-version=value format with entries separated
+ * by ':'. It is kept for neighbours that do not ask for anything else, and it
+ * cannot carry values containing ':', '=' or line breaks.
+ *
+ * BINARY encodes every entry as
+ *
+ *      [varint partition][zigzag varint key][varint version][varint length][UTF-8 value]
+ *
+ * and the chunk is sent as one Base64 line, since the ring links are line
+ * based. Any value survives the transfer. The entry and Base64 buffers are
+ * kept between chunks, and the Base64 is written and read straight from and to
+ * them, since java.util.Base64 only works on whole arrays or new buffers.
+ */
+public class DiffCodec {
+    public enum Encoding {
+        TEXT, BINARY;
+
+        public static Encoding fromName(String name) {
+            return "binary".equalsIgnoreCase(name.trim()) ? BINARY : TEXT;
+        }
+    }
+
+    private static final char[] BASE64_ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final int[] BASE64_VALUES = new int[128];
+
+    static {
+        Arrays.fill(BASE64_VALUES, -1);
+        for (int i = 0; i < BASE64_ALPHABET.length; i++) {
+            BASE64_VALUES[BASE64_ALPHABET[i]] = i;
+        }
+    }
+
+    private final Encoding encoding;
+    private final StringBuilder text = new StringBuilder();
+    private byte[] bytes = new byte[4096];
+    private int byteCount;
+    private char[] encoded = new char[0];
+
+    public DiffCodec(Encoding encoding) {
+        this.encoding = encoding;
+    }
+
+    public Encoding getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Message type of a chunk in this encoding
+     *
+     * @return
+     */
+    public String getChunkType() {
+        return (encoding == Encoding.BINARY) ? "C" : "D";
+    }
+
+    /**
+     * Appends an entry to the current chunk
+     *
+     * @param partition
+     * @param key
+     * @param version
+     * @param value
+     */
+    public void add(int partition, int key, int version, String value) {
+        if (encoding == Encoding.TEXT) {
+            if (text.length() > 0) {
+                text.append(":");
+            }
+            text.append(partition).append("-").append(key).append("-").append(version).append("=").append(value);
+            return;
+        }
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        ensureCapacity(byteCount + 20 + valueBytes.length);
+        writeVarint(partition);
+        writeVarint((key << 1) ^ (key >> 31));
+        writeVarint(version);
+        writeVarint(valueBytes.length);
+        System.arraycopy(valueBytes, 0, bytes, byteCount, valueBytes.length);
+        byteCount += valueBytes.length;
+    }
+
+    /**
+     * Size of the current chunk, in characters for TEXT and bytes for BINARY
+     *
+     * @return
+     */
+    public int size() {
+        return (encoding == Encoding.TEXT) ? text.length() : byteCount;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Returns the current chunk as message content and starts a new one
+     *
+     * @return
+     */
+    public String drain() {
+        if (encoding == Encoding.TEXT) {
+            String chunk = text.toString();
+            text.setLength(0);
+            return chunk;
+        }
+        int length = (byteCount + 2) / 3 * 4;
+        if (encoded.length < length) {
+            encoded = new char[length];
+        }
+        encodeBase64();
+        byteCount = 0;
+        return new String(encoded, 0, length);
+    }
+
+    /**
+     * Decodes a BINARY chunk and applies its entries to the data store
+     *
+     * @param chunk
+     * @param dataStore
+     * @return the number of entries in the chunk
+     */
+    public int decode(String chunk, DataStore dataStore) {
+        byteCount = 0;
+        ensureCapacity(chunk.length() / 4 * 3);
+        int length = decodeBase64(chunk);
+        int[] position = new int[1];
+        int entries = 0;
+        while (position[0] < length) {
+            int partition = readVarint(position, length);
+            int zigzagKey = readVarint(position, length);
+            int key = (zigzagKey >>> 1) ^ -(zigzagKey & 1);
+            int version = readVarint(position, length);
+            int valueLength = readVarint(position, length);
+            if (valueLength < 0 || position[0] + valueLength > length) {
+                throw new IllegalArgumentException("Truncated binary diff chunk");
+            }
+            String value = new String(bytes, position[0], valueLength, StandardCharsets.UTF_8);
+            position[0] += valueLength;
+            dataStore.applyDiff(partition, key, version, value);
+            entries++;
+        }
+        return entries;
+    }
+
+    private void writeVarint(int value) {
+        while ((value & ~0x7f) != 0) {
+            bytes[byteCount++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        bytes[byteCount++] = (byte) value;
+    }
+
+    private int readVarint(int[] position, int length) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (position[0] >= length) {
+                throw new IllegalArgumentException("Truncated binary diff chunk");
+            }
+            byte b = bytes[position[0]++];
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint in binary diff chunk");
+    }
+
+    /**
+     * Encodes the entry buffer as padded Base64 into the encoded buffer
+     */
+    private void encodeBase64() {
+        int out = 0;
+        int i = 0;
+        for (; i + 3 <= byteCount; i += 3) {
+            int group = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | (bytes[i + 2] & 0xff);
+            encoded[out++] = BASE64_ALPHABET[group >>> 18];
+            encoded[out++] = BASE64_ALPHABET[(group >>> 12) & 0x3f];
+            encoded[out++] = BASE64_ALPHABET[(group >>> 6) & 0x3f];
+            encoded[out++] = BASE64_ALPHABET[group & 0x3f];
+        }
+        int rest = byteCount - i;
+        if (rest > 0) {
+            int group = (bytes[i] & 0xff) << 16 | ((rest == 2) ? (bytes[i + 1] & 0xff) << 8 : 0);
+            encoded[out++] = BASE64_ALPHABET[group >>> 18];
+            encoded[out++] = BASE64_ALPHABET[(group >>> 12) & 0x3f];
+            encoded[out++] = (rest == 2) ? BASE64_ALPHABET[(group >>> 6) & 0x3f] : '=';
+            encoded[out] = '=';
+        }
+    }
+
+    /**
+     * Decodes a padded Base64 chunk into the entry buffer
+     *
+     * @param chunk
+     * @return the number of decoded bytes
+     */
+    private int decodeBase64(String chunk) {
+        int length = chunk.length();
+        if (length % 4 != 0) {
+            throw new IllegalArgumentException("Invalid Base64 length in binary diff chunk");
+        }
+        int padding = (length > 0 && chunk.charAt(length - 1) == '=') ? ((chunk.charAt(length - 2) == '=') ? 2 : 1) : 0;
+        int out = 0;
+        for (int i = 0; i < length; i += 4) {
+            int group = 0;
+            for (int j = 0; j < 4; j++) {
+                char c = chunk.charAt(i + j);
+                int value = (c < 128) ? BASE64_VALUES[c] : -1;
+                if (value < 0) {
+                    if (c != '=' || i + j < length - padding) {
+                        throw new IllegalArgumentException("Invalid Base64 in binary diff chunk");
+                    }
+                    value = 0;
+                }
+                group = group << 6 | value;
+            }
+            bytes[out++] = (byte) (group >>> 16);
+            bytes[out++] = (byte) (group >>> 8);
+            bytes[out++] = (byte) group;
+        }
+        return out - padding;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (bytes.length < capacity) {
+            byte[] grown = new byte[Math.max(capacity, bytes.length * 2)];
+            System.arraycopy(bytes, 0, grown, 0, byteCount);
+            bytes = grown;
+        }
+    }
+}
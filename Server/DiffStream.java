@@ -0,0 +1,182 @@
+package Server;
+
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams the recovery diffs for a rejoining node in bounded chunks, on its own
+ * thread so that the listener which received the rejoin request keeps reading
+ * its link. The stream is framed as
+ *
+ *      B,,node,target:encoding     begin
+ *      D,chunk,node,entries        one text chunk per line, numbered from 1
+ *      C,chunk,node,base64         or one binary chunk per line, see DiffCodec
+ *      E,chunks,node,entries       end, with the number of entries sent
+ *
+ * The encoding is negotiated by the rejoin request, whose content is the
+ * version vector optionally followed by |encoding. Requests without one get
+ * text chunks.
+ *
+ * The receiver applies every chunk as it arrives and acknowledges it with
+ * A,chunk,node,. At most window chunks are unacknowledged at any time, so
+ * neither side ever holds more than a few chunks of the dataset. Entries come
+ * in key order, so the receiver's version vector only moves past them at E. A
+ * stream cut off before E leaves it behind and the next rejoin request asks
+ * for those entries again.
+ */
+public class DiffStream implements Runnable {
+    private static final long ACK_TIMEOUT_SECONDS = 30;
+
+    private final ConnectionContext connectionContext;
+    private final int targetNode;
+    private final String versionVector;
+    private final DiffCodec diffCodec;
+    private final MessageWriter writer;
+    private final int chunkSize;
+    private final Semaphore credits;
+    private int chunksSent;
+
+    /**
+     * @param connectionContext
+     * @param targetNode
+     * @param rejoinRequest content of the R message, versionVector[|encoding]
+     * @param writer
+     */
+    public DiffStream(ConnectionContext connectionContext, int targetNode, String rejoinRequest, MessageWriter writer) {
+        this.connectionContext = connectionContext;
+        this.targetNode = targetNode;
+        String[] vectorAndEncoding = rejoinRequest.split("\\|", 2);
+        // Writes already replayed from a hint log are not sent again
+        this.versionVector = connectionContext.getHintedHandoff().adjustVersionVector(targetNode, vectorAndEncoding[0]);
+        this.diffCodec = new DiffCodec((vectorAndEncoding.length == 2)
+                ? DiffCodec.Encoding.fromName(vectorAndEncoding[1])
+                : DiffCodec.Encoding.TEXT);
+        this.writer = writer;
+        this.chunkSize = ConnectionContext.getServerProperty("diffChunkSize", 65536);
+        this.credits = new Semaphore(Math.max(1, ConnectionContext.getServerProperty("diffWindowChunks", 8)));
+    }
+
+    /**
+     * Registers the stream for acknowledgements and starts it
+     */
+    public void start() {
+        DiffStream previous = connectionContext.putDiffStream(targetNode, this);
+        if (previous != null) {
+            System.out.println("Replacing unfinished diff stream to node " + targetNode);
+        }
+        Thread streamThread = new Thread(this, "diff-stream-" + targetNode);
+        streamThread.setDaemon(true);
+        streamThread.start();
+    }
+
+    @Override
+    public void run() {
+        long start = System.currentTimeMillis();
+        final int currNodeId = ConnectionContext.getNodeID();
+        try {
+            writer.println(String.format("B,,%d,%d:%s", currNodeId, targetNode,
+                    diffCodec.getEncoding().name().toLowerCase()));
+            int entries = connectionContext.getDataStore().streamDiffs(targetNode, versionVector,
+                    new DataStore.DiffVisitor() {
+                        @Override
+                        public void visit(int serverNumber, int key, int version, String value) throws IOException {
+                            diffCodec.add(serverNumber, key, version, value);
+                            if (diffCodec.size() >= chunkSize) {
+                                sendChunk(currNodeId);
+                            }
+                        }
+                    });
+            if (!diffCodec.isEmpty()) {
+                sendChunk(currNodeId);
+            }
+            writer.println(String.format("E,%d,%d,%d", chunksSent, currNodeId, entries));
+            System.out.println(String.format("Streamed %d diff entries in %d chunks to node %d in %d ms", entries,
+                    chunksSent, targetNode, System.currentTimeMillis() - start));
+        } catch (IOException e) {
+            System.err.println("Diff stream to node " + targetNode + " aborted");
+            e.printStackTrace();
+        } finally {
+            connectionContext.removeDiffStream(targetNode, this);
+        }
+    }
+
+    /**
+     * Called when the target acknowledges a chunk
+     */
+    public void acknowledge() {
+        credits.release();
+    }
+
+    private void sendChunk(int currNodeId) throws IOException {
+        awaitCredit();
+        writer.println(String.format("%s,%d,%d,%s", diffCodec.getChunkType(), ++chunksSent, currNodeId,
+                diffCodec.drain()));
+    }
+
+    private void awaitCredit() throws IOException {
+        try {
+            if (!credits.tryAcquire(ACK_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                throw new IOException("No chunk acknowledgement from node " + targetNode);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for node " + targetNode, e);
+        }
+    }
+
+    /**
+     * Content of a rejoin request, the version vector followed by the diff
+     * encoding this node prefers
+     *
+     * @param versionVector
+     * @return
+     */
+    public static String rejoinRequest(String versionVector) {
+        return versionVector + "|" + ConnectionContext.getServerProperty("diffEncoding", "binary");
+    }
+
+    /**
+     * Receiver side. Handles the begin (B) and end (E) markers of a stream.
+     *
+     * @param dataStore
+     * @param message
+     */
+    public static void receiveMarker(DataStore dataStore, Message message) {
+        if ((message.getMessageType()).equals("B")) {
+            String target = message.getMessageContent().split(":", 2)[0];
+            if (target.equals(String.valueOf(ConnectionContext.getNodeID()))) {
+                dataStore.beginDiffStream(message.getNodeNumber());
+            }
+        } else {
+            System.out.println(String.format("Diff stream from node %d ended: %s entries in %d chunks",
+                    message.getNodeNumber(), message.getMessageContent(), message.getMessageOrderNo()));
+            dataStore.endDiffStream(message.getNodeNumber());
+        }
+    }
+
+    /**
+     * Receiver side. Applies a text (D) or binary (C) diff chunk and
+     * acknowledges it when it belongs to a stream. Unnumbered chunks, such
+     * as anti-entropy replies, are only applied.
+     *
+     * @param dataStore
+     * @param message
+     * @param decoder binary decoder owned by the receiving listener
+     * @param ackWriter link back to the sender
+     */
+    public static void receiveChunk(DataStore dataStore, Message message, DiffCodec decoder, MessageWriter ackWriter) {
+        if ((message.getMessageType()).equals("C")) {
+            try {
+                decoder.decode(message.getMessageContent(), dataStore);
+            } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                System.err.println("Invalid binary diff chunk skipped: " + e.getMessage());
+            }
+        } else {
+            dataStore.addDiffs(message.getMessageContent());
+        }
+        if (message.getMessageOrderNo() > 0) {
+            ackWriter.println(String.format("A,%d,%d,", message.getMessageOrderNo(), ConnectionContext.getNodeID()));
+        }
+    }
+}
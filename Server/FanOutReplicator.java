@@ -0,0 +1,313 @@
+package Server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Parallel fan-out replication, used when replicationTopology=fanout. The head
+ * of a chain sends every write it applies straight to both replicas of the
+ * partition, (partition + 1) and (partition + 2), instead of only to its
+ * successor, so a write is replicated after one network hop and one apply
+ * stage rather than two of each.
+ *
+ * The writes travel on links of their own, opened on fanoutPort (the ring port
+ * + 1 by default) the first time a replica is needed. Replicas apply what they
+ * receive there and do not relay it. When a replica cannot be reached the
+ * write goes down the ring chain instead, as in the default chain topology, so
+ * a node that left the ring is handled like before. A replica may then see a
+ * write twice, on two links and after newer writes; it applies a write only if
+ * it is newer than its copy of the key, see DataStore.writeData.
+ *
+ * Replicas ack the writes they applied on the same link, cumulatively like the
+ * tail of a chain, and the head commits a write once both replicas acked it.
+ * With CRAQ reads the head passes its commits on to the replicas, as
+ * "T,version,partition," on the same links, so that they can clean their keys.
+ */
+public class FanOutReplicator implements Runnable {
+    private static final long RECONNECT_MILLIS = 1000;
+
+    private ConnectionContext connectionContext;
+    private RingManager.RunningFlag runningFlag;
+    private ServerSocket fanOutServer;
+    private int fanOutPort;
+    private final Map<Integer, MessageWriter> replicaWriters = new ConcurrentHashMap<>();
+    private final Map<Integer, Long> unreachableSince = new ConcurrentHashMap<>();
+    // Highest version acked by each replica, by replica and partition
+    private int[][] ackedVersions;
+
+    public FanOutReplicator(ConnectionContext connectionContext, RingManager.RunningFlag runningFlag)
+            throws IOException {
+        this.connectionContext = connectionContext;
+        this.runningFlag = runningFlag;
+        this.fanOutPort = ConnectionContext.getServerProperty("fanoutPort", connectionContext.getPort() + 1);
+        this.fanOutServer = new ServerSocket(fanOutPort, 10);
+        this.ackedVersions = new int[connectionContext.getMaxServers()][connectionContext.getMaxServers()];
+    }
+
+    /**
+     * True when the server properties select the fan-out topology
+     *
+     * @return
+     */
+    public static boolean isConfigured() {
+        return "fanout".equalsIgnoreCase(ConnectionContext.getServerProperty("replicationTopology", "chain"));
+    }
+
+    /**
+     * Accepts the fan-out links of the heads this node is a replica for
+     */
+    @Override
+    public void run() {
+        System.out.println("FanOutReplicator listening on port " + fanOutPort);
+        while (runningFlag.running) {
+            try {
+                final Socket headSocket = fanOutServer.accept();
+                if (!connectionContext.isAcceptingConnections()
+                        || !connectionContext.getNodeIPMapping().containsValue(headSocket.getInetAddress())) {
+                    headSocket.close();
+                    continue;
+                }
+                headSocket.setTcpNoDelay(true);
+                ServerThreads.newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        applyWrites(headSocket);
+                    }
+                }, "fanout-" + headSocket.getInetAddress().getHostAddress()).start();
+            } catch (IOException e) {
+                if (!fanOutServer.isClosed()) {
+                    e.printStackTrace();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sends a write applied at the head to the replicas of its partition
+     *
+     * @param message    the write, numbered with its partition version
+     * @param moreQueued see ReplicationSender
+     * @return false if a replica could not be reached and the write has to go
+     *         down the chain
+     */
+    public boolean replicate(Message message, boolean moreQueued) {
+        int totalServers = connectionContext.getMaxServers();
+        int currNodeId = ConnectionContext.getNodeID();
+        boolean replicated = true;
+        for (int i = 1; i < 3; i++) {
+            int replica = (message.getNodeNumber() + i) % totalServers;
+            if (replica == currNodeId) {
+                // This node took over the head of the chain
+                continue;
+            }
+            MessageWriter replicaWriter = getReplicaWriter(replica);
+            if (replicaWriter == null) {
+                replicated = false;
+                continue;
+            }
+            replicaWriter.getReplicationSender().send(message, moreQueued);
+        }
+        return replicated;
+    }
+
+    /**
+     * Closes the listening socket and the links to the replicas
+     */
+    public void close() {
+        try {
+            fanOutServer.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (MessageWriter replicaWriter : replicaWriters.values()) {
+            replicaWriter.close();
+        }
+        replicaWriters.clear();
+    }
+
+    /**
+     * Link to a replica, opened when it is first needed. A link that failed is
+     * dropped and not tried again for RECONNECT_MILLIS.
+     *
+     * @param replica
+     * @return the link, null if the replica cannot be reached
+     */
+    private MessageWriter getReplicaWriter(int replica) {
+        MessageWriter replicaWriter = replicaWriters.get(replica);
+        if (replicaWriter != null) {
+            if (!replicaWriter.checkError()) {
+                return replicaWriter;
+            }
+            System.out.println("Fan-out link to node " + replica + " failed");
+            replicaWriters.remove(replica);
+            replicaWriter.close();
+            unreachableSince.put(replica, System.currentTimeMillis());
+        }
+        Long failedAt = unreachableSince.get(replica);
+        if (failedAt != null && System.currentTimeMillis() - failedAt < RECONNECT_MILLIS) {
+            return null;
+        }
+        synchronized (replicaWriters) {
+            replicaWriter = replicaWriters.get(replica);
+            if (replicaWriter != null) {
+                return replicaWriter;
+            }
+            InetAddress replicaAddress = connectionContext.getNodeIPFromNodeNumber(replica);
+            try {
+                Socket replicaSocket = new Socket();
+                replicaSocket.connect(new InetSocketAddress(replicaAddress, fanOutPort), (int) RECONNECT_MILLIS);
+                replicaSocket.setTcpNoDelay(true);
+                replicaSocket.setKeepAlive(true);
+                replicaWriter = new MessageWriter(replicaSocket.getOutputStream());
+                replicaWriters.put(replica, replicaWriter);
+                startAckReader(replica, replicaSocket);
+                unreachableSince.remove(replica);
+                System.out.println("Fan-out link to node " + replica + " open");
+                return replicaWriter;
+            } catch (IOException e) {
+                System.err.println("Unable to open fan-out link to node " + replica + ". Using the chain.");
+                unreachableSince.put(replica, System.currentTimeMillis());
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Reads the acks a replica sends back on its fan-out link
+     *
+     * @param replica
+     * @param replicaSocket
+     * @throws IOException
+     */
+    private void startAckReader(final int replica, Socket replicaSocket) throws IOException {
+        final MessageReader ackReader = new MessageReader(replicaSocket.getInputStream());
+        Thread ackThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Message message;
+                    while ((message = ackReader.readMessage()) != null) {
+                        if ((message.getMessageType()).equals("T")) {
+                            handleReplicaAck(replica, message.getNodeNumber(), message.getMessageOrderNo());
+                        }
+                    }
+                } catch (IOException e) {
+                    // Link closed, noticed by the next write to the replica
+                }
+            }
+        }, "fanout-acks-" + replica);
+        ackThread.setDaemon(true);
+        ackThread.start();
+    }
+
+    /**
+     * Commits the writes of a partition acked by both of its replicas
+     *
+     * @param replica
+     * @param partition
+     * @param version
+     */
+    private void handleReplicaAck(int replica, int partition, int version) {
+        int totalServers = connectionContext.getMaxServers();
+        int currNodeId = ConnectionContext.getNodeID();
+        int otherReplica = (replica == (partition + 1) % totalServers) ? (partition + 2) % totalServers
+                : (partition + 1) % totalServers;
+        int committed;
+        synchronized (ackedVersions) {
+            ackedVersions[replica][partition] = Math.max(ackedVersions[replica][partition], version);
+            // A head that took over the chain is one of the replicas itself
+            committed = (otherReplica == currNodeId) ? ackedVersions[replica][partition]
+                    : Math.min(ackedVersions[replica][partition], ackedVersions[otherReplica][partition]);
+        }
+        if (committed > 0) {
+            connectionContext.getCommitTracker().acknowledge(partition, committed);
+            if (connectionContext.getCraqReads() != null) {
+                sendCommit(partition, committed);
+            }
+        }
+    }
+
+    /**
+     * Tells the replicas of a partition which of its writes are committed
+     *
+     * @param partition
+     * @param version
+     */
+    private void sendCommit(int partition, int version) {
+        int totalServers = connectionContext.getMaxServers();
+        Message commit = new Message("T", version, partition, "");
+        for (int i = 1; i < 3; i++) {
+            MessageWriter replicaWriter = replicaWriters.get((partition + i) % totalServers);
+            if (replicaWriter != null) {
+                replicaWriter.send(commit);
+            }
+        }
+    }
+
+    /**
+     * Applies the writes a head sends on a fan-out link until it is closed, or
+     * this node leaves the ring, and acks them back once a run of writes ends
+     *
+     * @param headSocket
+     */
+    private void applyWrites(Socket headSocket) {
+        int currNodeId = ConnectionContext.getNodeID();
+        int totalServers = connectionContext.getMaxServers();
+        int[] unackedVersions = new int[totalServers];
+        try {
+            MessageReader reader = new MessageReader(headSocket.getInputStream());
+            MessageWriter ackWriter = new MessageWriter(headSocket.getOutputStream());
+            MessageView view = new MessageView();
+            while (connectionContext.isAcceptingConnections() && reader.readView(view)) {
+                int partition = view.getNodeNumber();
+                boolean replica = currNodeId == (partition + 1) % totalServers
+                        || currNodeId == (partition + 2) % totalServers;
+                CraqReads craqReads = connectionContext.getCraqReads();
+                if (view.getType() == 'T' && replica && craqReads != null) {
+                    craqReads.commit(partition, view.getMessageOrderNo());
+                    continue;
+                }
+                if (view.getType() != 'W' || !replica || !view.hasValue()) {
+                    System.out.println("Incorrect Message Received on fan-out link. Rejected.");
+                    continue;
+                }
+                int key = view.parseKey();
+                String value = view.getValue();
+                if (craqReads != null) {
+                    craqReads.beginWrite(partition, key);
+                }
+                if (connectionContext.getDataStore().writeData(key, value, partition, view.getMessageOrderNo())) {
+                    connectionContext.getHintedHandoff().hint(partition, key, view.getMessageOrderNo(), value);
+                    if (craqReads != null) {
+                        craqReads.endWrite(partition, key, view.getMessageOrderNo(), value);
+                    }
+                } else if (craqReads != null) {
+                    craqReads.abortWrite(partition, key);
+                }
+                unackedVersions[partition] = Math.max(unackedVersions[partition], view.getMessageOrderNo());
+                if (!reader.hasBufferedInput()) {
+                    for (int i = 0; i < totalServers; i++) {
+                        if (unackedVersions[i] > 0) {
+                            ackWriter.send(new Message("T", unackedVersions[i], i, ""));
+                            unackedVersions[i] = 0;
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Fan-out link from " + headSocket.getInetAddress() + " closed");
+        } finally {
+            try {
+                headSocket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
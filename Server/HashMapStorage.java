@@ -0,0 +1,38 @@
+package Server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Default storage engine. Keeps the content in a ConcurrentHashMap.
+ */
+public class HashMapStorage implements StorageEngine {
+    private ConcurrentHashMap<Integer, String> content = new ConcurrentHashMap<>();
+
+    @Override
+    public void put(int key, String value) {
+        content.put(key, value);
+    }
+
+    @Override
+    public String get(int key) {
+        return content.get(key);
+    }
+
+    @Override
+    public int size() {
+        return content.size();
+    }
+
+    @Override
+    public void forEach(EntryVisitor visitor) {
+        for (Map.Entry<Integer, String> entry : content.entrySet()) {
+            visitor.visit(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return content.toString();
+    }
+}
@@ -0,0 +1,198 @@
+package Server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded log of the writes an absent replica missed, kept by the node that
+ * took over its ring link. Hints are kept in memory, or appended to a file as
+ * [partition][key][version][value length][UTF-8 value] records when a file is
+ * given. Once maxHints writes are logged the log is marked incomplete and
+ * stops growing; the replica then has to catch up through the regular diff
+ * transfer.
+ */
+public class HintLog {
+    /**
+     * Visitor used to replay the hints
+     */
+    public interface HintVisitor {
+        void visit(int partition, int key, int version, String value) throws IOException;
+    }
+
+    private final int targetNode;
+    private final int maxHints;
+    private final File file;
+    private DataOutputStream fileOut;
+    private final List<Hint> hints = new ArrayList<>();
+    private final Map<Integer, int[]> versionRanges = new HashMap<>();
+    private int hintCount;
+    private boolean complete = true;
+
+    /**
+     * @param targetNode node the hints are kept for
+     * @param maxHints
+     * @param file backing file, null to keep hints in memory
+     * @throws IOException
+     */
+    public HintLog(int targetNode, int maxHints, File file) throws IOException {
+        this.targetNode = targetNode;
+        this.maxHints = maxHints;
+        this.file = file;
+        if (file != null) {
+            File directory = file.getParentFile();
+            if (directory != null && !directory.exists() && !directory.mkdirs()) {
+                throw new IOException("Unable to create hint directory " + directory);
+            }
+            fileOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+        }
+    }
+
+    /**
+     * Logs a missed write
+     *
+     * @param partition
+     * @param key
+     * @param version
+     * @param value
+     * @throws IOException
+     */
+    public synchronized void append(int partition, int key, int version, String value) throws IOException {
+        if (!complete) {
+            return;
+        }
+        if (hintCount == maxHints) {
+            System.out.println(String.format("Hint log for node %d is full. Falling back to a diff transfer.",
+                    targetNode));
+            complete = false;
+            clear();
+            return;
+        }
+        if (fileOut != null) {
+            byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+            fileOut.writeInt(partition);
+            fileOut.writeInt(key);
+            fileOut.writeInt(version);
+            fileOut.writeInt(valueBytes.length);
+            fileOut.write(valueBytes);
+        } else {
+            hints.add(new Hint(partition, key, version, value));
+        }
+        int[] range = versionRanges.get(partition);
+        if (range == null) {
+            versionRanges.put(partition, new int[] { version, version });
+        } else {
+            range[1] = Math.max(range[1], version);
+        }
+        hintCount++;
+    }
+
+    /**
+     * Replays the hints in the order they were logged
+     *
+     * @param visitor
+     * @return the number of hints replayed
+     * @throws IOException
+     */
+    public synchronized int replay(HintVisitor visitor) throws IOException {
+        if (!complete) {
+            return 0;
+        }
+        if (fileOut == null) {
+            for (Hint hint : hints) {
+                visitor.visit(hint.partition, hint.key, hint.version, hint.value);
+            }
+            return hints.size();
+        }
+        fileOut.flush();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+            byte[] valueBytes = new byte[256];
+            for (int i = 0; i < hintCount; i++) {
+                int partition = in.readInt();
+                int key = in.readInt();
+                int version = in.readInt();
+                int length = in.readInt();
+                if (valueBytes.length < length) {
+                    valueBytes = new byte[Math.max(length, valueBytes.length * 2)];
+                }
+                in.readFully(valueBytes, 0, length);
+                visitor.visit(partition, key, version, new String(valueBytes, 0, length, StandardCharsets.UTF_8));
+            }
+        } catch (EOFException e) {
+            throw new IOException("Hint file " + file + " is truncated", e);
+        }
+        return hintCount;
+    }
+
+    /**
+     * False once the log overflowed and some missed writes were not kept
+     *
+     * @return
+     */
+    public synchronized boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * First and last hinted version per partition
+     *
+     * @return
+     */
+    public synchronized Map<Integer, int[]> getVersionRanges() {
+        Map<Integer, int[]> copy = new HashMap<>();
+        for (Map.Entry<Integer, int[]> entry : versionRanges.entrySet()) {
+            copy.put(entry.getKey(), entry.getValue().clone());
+        }
+        return copy;
+    }
+
+    /**
+     * Releases the hints and deletes the backing file. Later appends are
+     * ignored.
+     */
+    public synchronized void delete() {
+        complete = false;
+        clear();
+    }
+
+    private void clear() {
+        hints.clear();
+        versionRanges.clear();
+        if (fileOut != null) {
+            try {
+                fileOut.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            fileOut = null;
+            if (!file.delete()) {
+                System.err.println("Unable to delete hint file " + file);
+            }
+        }
+    }
+
+    private static final class Hint {
+        final int partition;
+        final int key;
+        final int version;
+        final String value;
+
+        Hint(int partition, int key, int version, String value) {
+            this.partition = partition;
+            this.key = key;
+            this.version = version;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package Server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hinted handoff for replicas that left the ring. When a node's successor
+ * rebels, the node keeps a HintLog of every write it applies for a partition
+ * the absent node replicates. When the node reconnects as its successor the
+ * hints are replayed to it as
+ *
+ *      P,version,partition,key:value
+ *
+ * messages, which the replica applies without forwarding. The versions the
+ * hints covered are remembered so that the diff stream answering the node's
+ * rejoin request skips the writes it was already sent.
+ */
+public class HintedHandoff {
+    private final ConcurrentHashMap<Integer, HintLog> hintLogs = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Map<Integer, int[]>> deliveredRanges = new ConcurrentHashMap<>();
+    private final int totalServers;
+    private final boolean enabled;
+    private final int maxHints;
+    private final File directory;
+
+    public HintedHandoff(int totalServers) {
+        this.totalServers = totalServers;
+        this.enabled = Boolean.parseBoolean(ConnectionContext.getServerProperty("hintedHandoffEnabled", "true"));
+        this.maxHints = ConnectionContext.getServerProperty("hintMaxEntries", 100000);
+        this.directory = "disk".equalsIgnoreCase(ConnectionContext.getServerProperty("hintStorage", "memory"))
+                ? new File(ConnectionContext.getServerProperty("hintDirectory", "./hints"),
+                        "ringstore-" + ConnectionContext.getNodeID())
+                : null;
+    }
+
+    /**
+     * Starts keeping hints for a node that left the ring
+     *
+     * @param absentNode
+     */
+    public void startHinting(int absentNode) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            File file = (directory == null) ? null : new File(directory, "hints-" + absentNode + ".log");
+            HintLog previous = hintLogs.put(absentNode, new HintLog(absentNode, maxHints, file));
+            if (previous != null) {
+                previous.delete();
+            }
+            System.out.println("Keeping hints for node " + absentNode);
+        } catch (IOException e) {
+            System.err.println("Unable to create a hint log for node " + absentNode);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Records a write applied at this node for every absent replica of its
+     * partition
+     *
+     * @param partition
+     * @param key
+     * @param version
+     * @param value
+     */
+    public void hint(int partition, int key, int version, String value) {
+        if (hintLogs.isEmpty()) {
+            return;
+        }
+        for (int i = 1; i < 3; i++) {
+            HintLog hintLog = hintLogs.get((partition + i) % totalServers);
+            if (hintLog != null) {
+                try {
+                    hintLog.append(partition, key, version, value);
+                } catch (IOException e) {
+                    System.err.println("Unable to log hint for key " + key);
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Replays the hints kept for a node that reconnected and stops hinting for
+     * it
+     *
+     * @param node
+     * @param writer link to the node
+     * @return the number of hints replayed
+     * @throws IOException
+     */
+    public int replay(int node, final MessageWriter writer) throws IOException {
+        HintLog hintLog = hintLogs.remove(node);
+        if (hintLog == null) {
+            return 0;
+        }
+        try {
+            if (!hintLog.isComplete()) {
+                return 0;
+            }
+            long start = System.currentTimeMillis();
+            // Taken before the replay, so a write hinted while replaying is never
+            // counted as delivered without having been sent
+            Map<Integer, int[]> ranges = hintLog.getVersionRanges();
+            int replayed = hintLog.replay(new HintLog.HintVisitor() {
+                @Override
+                public void visit(int partition, int key, int version, String value) {
+                    writer.println(String.format("P,%d,%d,%d:%s", version, partition, key, value));
+                }
+            });
+            deliveredRanges.put(node, ranges);
+            System.out.println(String.format("Replayed %d hints to node %d in %d ms", replayed, node,
+                    System.currentTimeMillis() - start));
+            return replayed;
+        } finally {
+            hintLog.delete();
+        }
+    }
+
+    /**
+     * Raises the versions of a rejoin request's version vector past the hints
+     * that were just replayed to the node, for every partition where the hints
+     * start right after the version the node already had.
+     *
+     * @param node
+     * @param versionVector
+     * @return
+     */
+    public String adjustVersionVector(int node, String versionVector) {
+        Map<Integer, int[]> ranges = deliveredRanges.remove(node);
+        if (ranges == null) {
+            return versionVector;
+        }
+        Map<Integer, Integer> appliedVersions = DataStore.parseVersionVector(versionVector);
+        StringBuilder result = new StringBuilder();
+        for (Map.Entry<Integer, Integer> entry : appliedVersions.entrySet()) {
+            int version = entry.getValue();
+            int[] range = ranges.get(entry.getKey());
+            if (range != null && version >= range[0] - 1) {
+                version = Math.max(version, range[1]);
+            }
+            if (result.length() > 0) {
+                result.append(";");
+            }
+            result.append(entry.getKey()).append(":").append(version);
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,181 @@
+package Server;
+
+/**
+ * Storage engine built on primitive int keys. The key space is split into lock
+ * stripes and every stripe is an open-addressing table with linear probing, so
+ * a write neither boxes the key nor allocates a map entry. Writers on different
+ * stripes never share a monitor.
+ */
+public class IntHashStorage implements StorageEngine {
+    private static final int DEFAULT_STRIPES = 64;
+    private static final int DEFAULT_STRIPE_CAPACITY = 256;
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private final Stripe[] stripes;
+    private final int stripeShift;
+
+    public IntHashStorage() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param stripeCount number of lock stripes, rounded up to a power of two
+     */
+    public IntHashStorage(int stripeCount) {
+        int count = nextPowerOfTwo(Math.max(1, stripeCount));
+        this.stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe(DEFAULT_STRIPE_CAPACITY);
+        }
+        this.stripeShift = 32 - Integer.numberOfTrailingZeros(count);
+    }
+
+    @Override
+    public void put(int key, String value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Null values are not stored");
+        }
+        int hash = mix(key);
+        stripeFor(hash).put(key, value, hash);
+    }
+
+    @Override
+    public String get(int key) {
+        int hash = mix(key);
+        return stripeFor(hash).get(key, hash);
+    }
+
+    @Override
+    public int size() {
+        int total = 0;
+        for (Stripe stripe : stripes) {
+            total += stripe.size();
+        }
+        return total;
+    }
+
+    @Override
+    public void forEach(EntryVisitor visitor) {
+        for (Stripe stripe : stripes) {
+            stripe.forEach(visitor);
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder result = new StringBuilder("{");
+        forEach(new EntryVisitor() {
+            @Override
+            public void visit(int key, String value) {
+                if (result.length() > 1) {
+                    result.append(", ");
+                }
+                result.append(key).append("=").append(value);
+            }
+        });
+        return result.append("}").toString();
+    }
+
+    private Stripe stripeFor(int hash) {
+        // stripeShift is 32 for a single stripe, which java treats as a shift of 0
+        return stripes.length == 1 ? stripes[0] : stripes[hash >>> stripeShift];
+    }
+
+    /**
+     * Finalization step of murmur3 to spread sequential keys across the table
+     *
+     * @param key
+     * @return
+     */
+    static int mix(int key) {
+        int h = key;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    static int nextPowerOfTwo(int value) {
+        int result = 1;
+        while (result < value) {
+            result <<= 1;
+        }
+        return result;
+    }
+
+    /**
+     * A single open-addressing table guarded by its own monitor. A slot is free
+     * when its value is null, so every int including 0 is a valid key.
+     */
+    private static final class Stripe {
+        private int[] keys;
+        private String[] values;
+        private int size;
+        private int resizeThreshold;
+
+        Stripe(int capacity) {
+            allocate(nextPowerOfTwo(capacity));
+        }
+
+        synchronized void put(int key, String value, int hash) {
+            int slot = findSlot(keys, values, key, hash);
+            if (values[slot] == null) {
+                keys[slot] = key;
+                size++;
+            }
+            values[slot] = value;
+            if (size > resizeThreshold) {
+                resize();
+            }
+        }
+
+        synchronized String get(int key, int hash) {
+            return values[findSlot(keys, values, key, hash)];
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized void forEach(EntryVisitor visitor) {
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) {
+                    visitor.visit(keys[i], values[i]);
+                }
+            }
+        }
+
+        /**
+         * Returns the slot holding the key, or the free slot where it belongs
+         */
+        private static int findSlot(int[] keys, String[] values, int key, int hash) {
+            int mask = values.length - 1;
+            int slot = hash & mask;
+            while (values[slot] != null && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void resize() {
+            int[] oldKeys = keys;
+            String[] oldValues = values;
+            allocate(oldValues.length * 2);
+            for (int i = 0; i < oldValues.length; i++) {
+                if (oldValues[i] != null) {
+                    int slot = findSlot(keys, values, oldKeys[i], mix(oldKeys[i]));
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+
+        private void allocate(int capacity) {
+            keys = new int[capacity];
+            values = new String[capacity];
+            resizeThreshold = (int) (capacity * LOAD_FACTOR);
+        }
+    }
+}
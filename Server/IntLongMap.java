@@ -0,0 +1,170 @@
+package Server;
+
+/**
+ * Lock-striped open-addressing map from primitive int keys to primitive long
+ * values. Used as the in-heap index of the segment storage engine, where the
+ * value packs the location of a record.
+ */
+public class IntLongMap {
+    public static final long NO_VALUE = -1L;
+    private static final int DEFAULT_STRIPES = 64;
+    private static final int DEFAULT_STRIPE_CAPACITY = 256;
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private final Stripe[] stripes;
+    private final int stripeShift;
+
+    public IntLongMap() {
+        int count = DEFAULT_STRIPES;
+        this.stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe(DEFAULT_STRIPE_CAPACITY);
+        }
+        this.stripeShift = 32 - Integer.numberOfTrailingZeros(count);
+    }
+
+    /**
+     * Maps a key to a value
+     *
+     * @param key
+     * @param value any value other than NO_VALUE
+     * @return the previous value, or NO_VALUE
+     */
+    public long put(int key, long value) {
+        int hash = IntHashStorage.mix(key);
+        return stripeFor(hash).put(key, value, hash);
+    }
+
+    /**
+     * @param key
+     * @return the value of the key, or NO_VALUE
+     */
+    public long get(int key) {
+        int hash = IntHashStorage.mix(key);
+        return stripeFor(hash).get(key, hash);
+    }
+
+    /**
+     * Replaces the value of a key only if it still maps to the expected value
+     *
+     * @param key
+     * @param expected
+     * @param update
+     * @return true if the value was replaced
+     */
+    public boolean replace(int key, long expected, long update) {
+        int hash = IntHashStorage.mix(key);
+        return stripeFor(hash).replace(key, expected, update, hash);
+    }
+
+    public int size() {
+        int total = 0;
+        for (Stripe stripe : stripes) {
+            total += stripe.size();
+        }
+        return total;
+    }
+
+    public void forEach(EntryVisitor visitor) {
+        for (Stripe stripe : stripes) {
+            stripe.forEach(visitor);
+        }
+    }
+
+    /**
+     * Callback used to iterate over the map
+     */
+    public interface EntryVisitor {
+        void visit(int key, long value);
+    }
+
+    private Stripe stripeFor(int hash) {
+        return stripes[hash >>> stripeShift];
+    }
+
+    private static final class Stripe {
+        private int[] keys;
+        private long[] values;
+        private boolean[] used;
+        private int size;
+        private int resizeThreshold;
+
+        Stripe(int capacity) {
+            allocate(capacity);
+        }
+
+        synchronized long put(int key, long value, int hash) {
+            int slot = findSlot(keys, used, key, hash);
+            long previous = NO_VALUE;
+            if (used[slot]) {
+                previous = values[slot];
+            } else {
+                keys[slot] = key;
+                used[slot] = true;
+                size++;
+            }
+            values[slot] = value;
+            if (size > resizeThreshold) {
+                resize();
+            }
+            return previous;
+        }
+
+        synchronized long get(int key, int hash) {
+            int slot = findSlot(keys, used, key, hash);
+            return used[slot] ? values[slot] : NO_VALUE;
+        }
+
+        synchronized boolean replace(int key, long expected, long update, int hash) {
+            int slot = findSlot(keys, used, key, hash);
+            if (used[slot] && values[slot] == expected) {
+                values[slot] = update;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized void forEach(EntryVisitor visitor) {
+            for (int i = 0; i < keys.length; i++) {
+                if (used[i]) {
+                    visitor.visit(keys[i], values[i]);
+                }
+            }
+        }
+
+        private static int findSlot(int[] keys, boolean[] used, int key, int hash) {
+            int mask = keys.length - 1;
+            int slot = hash & mask;
+            while (used[slot] && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void resize() {
+            int[] oldKeys = keys;
+            long[] oldValues = values;
+            boolean[] oldUsed = used;
+            allocate(oldKeys.length * 2);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldUsed[i]) {
+                    int slot = findSlot(keys, used, oldKeys[i], IntHashStorage.mix(oldKeys[i]));
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                    used[slot] = true;
+                }
+            }
+        }
+
+        private void allocate(int capacity) {
+            keys = new int[capacity];
+            values = new long[capacity];
+            used = new boolean[capacity];
+            resizeThreshold = (int) (capacity * LOAD_FACTOR);
+        }
+    }
+}
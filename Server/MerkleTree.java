@@ -0,0 +1,94 @@
+package Server;
+
+/**
+ * Hash tree over the keys of one partition. Keys are spread over a fixed number
+ * of leaf buckets and every node holds the XOR of the entry hashes below it, so
+ * a write updates one path from its leaf to the root without rehashing any
+ * other key. Nodes are stored heap style - node 0 is the root and the children
+ * of node i are 2i+1 and 2i+2.
+ *
+ * Two replicas holding the same entries have the same node hashes, so they only
+ * need to descend into the subtrees whose hashes differ.
+ */
+public class MerkleTree {
+    private final int depth;
+    private final int leafCount;
+    private final long[] nodes;
+
+    /**
+     * @param depth number of levels below the root, leafCount = 2^depth
+     */
+    public MerkleTree(int depth) {
+        this.depth = depth;
+        this.leafCount = 1 << depth;
+        this.nodes = new long[2 * leafCount - 1];
+    }
+
+    /**
+     * Replaces the hash of an entry in its leaf and on the path to the root
+     *
+     * @param key
+     * @param oldEntryHash 0 if the key was not present
+     * @param newEntryHash
+     */
+    public synchronized void update(int key, long oldEntryHash, long newEntryHash) {
+        long delta = oldEntryHash ^ newEntryHash;
+        if (delta == 0) {
+            return;
+        }
+        int node = leafNodeOf(key);
+        while (true) {
+            nodes[node] ^= delta;
+            if (node == 0) {
+                break;
+            }
+            node = (node - 1) / 2;
+        }
+    }
+
+    public synchronized long getHash(int node) {
+        return nodes[node];
+    }
+
+    public boolean isLeaf(int node) {
+        return node >= leafCount - 1;
+    }
+
+    public boolean isValidNode(int node) {
+        return node >= 0 && node < nodes.length;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Leaf node holding a key
+     *
+     * @param key
+     * @return
+     */
+    public int leafNodeOf(int key) {
+        return leafCount - 1 + (IntHashStorage.mix(key) & (leafCount - 1));
+    }
+
+    /**
+     * 64 bit FNV-1a hash of a key and its value, never 0
+     *
+     * @param key
+     * @param value
+     * @return
+     */
+    public static long entryHash(int key, String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int shift = 0; shift < 32; shift += 8) {
+            hash ^= (key >>> shift) & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return (hash == 0) ? 1 : hash;
+    }
+}
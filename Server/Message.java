@@ -5,6 +5,7 @@ public class Message {
     private Integer messageOrderNo;
     private Integer nodeNumber;
     private String messageContent;
+    private CommitTracker.Waiter commitWaiter;
 
     /**
      * Message Constructor to handle raw messages.
@@ -20,6 +21,21 @@ public class Message {
         this.messageContent = messageParts[3];
     }
 
+    /**
+     * Message Constructor for messages decoded from binary frames
+     * 
+     * @param type
+     * @param messageOrderNo
+     * @param nodeNumber
+     * @param messageContent
+     */
+    public Message(String type, Integer messageOrderNo, Integer nodeNumber, String messageContent) {
+        this.type = type;
+        this.messageOrderNo = messageOrderNo;
+        this.nodeNumber = nodeNumber;
+        this.messageContent = messageContent;
+    }
+
     /**
      * Getting message content
      * 
@@ -38,6 +54,16 @@ public class Message {
         return this.messageOrderNo;
     }
 
+    /**
+     * Replaces the order number. The head of the chain sets it to the partition
+     * version of the write before forwarding it.
+     * 
+     * @param messageOrderNo
+     */
+    public void setMessageOrderNo(Integer messageOrderNo) {
+        this.messageOrderNo = messageOrderNo;
+    }
+
     public int getNodeNumber() {
         return this.nodeNumber;
     }
@@ -46,7 +72,26 @@ public class Message {
         return this.type;
     }
 
+    /**
+     * Client waiting for this write to commit on all replicas, null if the
+     * client was answered when the write was queued
+     * 
+     * @return
+     */
+    public CommitTracker.Waiter getCommitWaiter() {
+        return this.commitWaiter;
+    }
+
+    public void setCommitWaiter(CommitTracker.Waiter commitWaiter) {
+        this.commitWaiter = commitWaiter;
+    }
+
     public String getForwardMessage() {
         return String.format("%s,%d,%d,%s", type, messageOrderNo, nodeNumber, messageContent);
     }
+
+    @Override
+    public String toString() {
+        return getForwardMessage();
+    }
 }
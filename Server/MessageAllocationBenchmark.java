@@ -0,0 +1,115 @@
+package Server;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures the bytes allocated per write on one replication hop: reading a
+ * forwarded write from the predecessor, extracting the key and value to apply
+ * and relaying it to the successor. The DataStore is left out, both paths hand
+ * it the same key and value String.
+ *
+ * "message" is the Message based hop (readLine, new Message, split,
+ * getForwardMessage), "view" the MessageView hop in the text and the binary
+ * format.
+ *
+ * Usage: java Server.MessageAllocationBenchmark [writes] [valueBytes]
+ */
+public class MessageAllocationBenchmark {
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    private static long checksum;
+
+    public static void main(String[] args) throws IOException {
+        int writes = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+        int valueBytes = (args.length > 1) ? Integer.parseInt(args[1]) : 32;
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < valueBytes; i++) {
+            value.append((char) ('a' + i % 26));
+        }
+        byte[] text = encode(writes, value.toString(), false);
+        byte[] binary = encode(writes, value.toString(), true);
+
+        // Warm up before measuring
+        for (int i = 0; i < 3; i++) {
+            messageHop(text);
+            viewHop(text, false);
+            viewHop(binary, true);
+        }
+        System.out.println(String.format("%d writes with %d byte values", writes, valueBytes));
+        report("message (text)", writes, text, false, false);
+        report("view (text)", writes, text, true, false);
+        report("view (binary)", writes, binary, true, true);
+        if (checksum == 42) {
+            System.out.println();
+        }
+    }
+
+    private static void report(String name, int writes, byte[] input, boolean view, boolean binary)
+            throws IOException {
+        long before = allocatedBytes();
+        long start = System.nanoTime();
+        if (view) {
+            viewHop(input, binary);
+        } else {
+            messageHop(input);
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - before;
+        System.out.println(String.format("%-16s %8.1f bytes/write %8.0f ns/write", name, (double) allocated / writes,
+                (double) elapsed / writes));
+    }
+
+    private static byte[] encode(int writes, String value, boolean binary) {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        MessageWriter writer = new MessageWriter(encoded, binary, true);
+        for (int i = 0; i < writes; i++) {
+            writer.send(new Message("W", i + 1, i % 7, (i % 10000) + ":" + value));
+        }
+        return encoded.toByteArray();
+    }
+
+    private static void messageHop(byte[] input) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(input)));
+        PrintWriter writer = new PrintWriter(DISCARD, true);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            Message message = new Message(line);
+            String[] KVPair = message.getMessageContent().split(":", 2);
+            checksum += Integer.parseInt(KVPair[0]) + KVPair[1].length();
+            writer.println(message.getForwardMessage());
+        }
+    }
+
+    private static void viewHop(byte[] input, boolean binary) throws IOException {
+        MessageReader reader = new MessageReader(new ByteArrayInputStream(input));
+        MessageWriter writer = new MessageWriter(DISCARD, binary, false);
+        MessageView view = new MessageView();
+        while (reader.readView(view)) {
+            checksum += view.parseKey() + view.getValue().length();
+            writer.forward(view);
+        }
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        throw new UnsupportedOperationException("Allocation counters need a HotSpot JVM");
+    }
+}
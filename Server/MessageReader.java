@@ -0,0 +1,301 @@
+package Server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads messages from a client or ring link in either wire format. A link
+ * starts in the text format and switches to binary frames when the other side
+ * sends WireProtocol.BINARY_HELLO, see MessageWriter.
+ */
+public class MessageReader {
+    private static final byte[] HELLO_BYTES = WireProtocol.BINARY_HELLO.getBytes(StandardCharsets.UTF_8);
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[65536];
+    private int position;
+    private int limit;
+    private byte[] fieldBytes = new byte[256];
+    private boolean binary;
+    // Bytes of the current frame left for its fields
+    private int fieldBudget;
+
+    public MessageReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * True once the other side switched to binary frames
+     *
+     * @return
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * True when more input is already buffered, so the next read does not
+     * block
+     *
+     * @return
+     */
+    public boolean hasBufferedInput() {
+        return position < limit;
+    }
+
+    /**
+     * Reads the next line, rebuilt in the text format when it arrived as a
+     * binary frame
+     *
+     * @return the line, null at the end of the stream
+     * @throws IOException
+     */
+    public String readLine() throws IOException {
+        while (true) {
+            if (binary) {
+                if (!hasMoreInput()) {
+                    return null;
+                }
+                fieldBudget = WireProtocol.checkFrameLength(readInt()) - WireProtocol.FRAME_HEADER_BYTES;
+                byte type = readByte();
+                int seqNo = readInt();
+                int nodeNo = readInt();
+                String key = readField();
+                String value = readField();
+                if (type == WireProtocol.RAW_TYPE) {
+                    return value;
+                }
+                return WireProtocol.toMessage(type, seqNo, nodeNo, key, value).getForwardMessage();
+            }
+            String line = readTextLine();
+            if (line == null || !line.equals(WireProtocol.BINARY_HELLO)) {
+                return line;
+            }
+            binary = true;
+        }
+    }
+
+    /**
+     * Reads the next client request. A binary frame of a message type is read
+     * straight into a message, a text line or raw frame into a line.
+     *
+     * @param request
+     * @return false at the end of the stream
+     * @throws IOException
+     */
+    boolean readRequest(WireProtocol.Request request) throws IOException {
+        while (true) {
+            if (binary) {
+                if (!hasMoreInput()) {
+                    return false;
+                }
+                fieldBudget = WireProtocol.checkFrameLength(readInt()) - WireProtocol.FRAME_HEADER_BYTES;
+                byte type = readByte();
+                int seqNo = readInt();
+                int nodeNo = readInt();
+                String key = readField();
+                String value = readField();
+                if (type == WireProtocol.RAW_TYPE) {
+                    request.setLine(value);
+                } else {
+                    request.setMessage(WireProtocol.toMessage(type, seqNo, nodeNo, key, value));
+                }
+                return true;
+            }
+            String line = readTextLine();
+            if (line == null) {
+                return false;
+            }
+            if (!line.equals(WireProtocol.BINARY_HELLO)) {
+                request.setLine(line);
+                return true;
+            }
+            binary = true;
+        }
+    }
+
+    /**
+     * Reads the next message. Lines that are not messages are skipped.
+     *
+     * @return the message, null at the end of the stream
+     * @throws IOException
+     */
+    public Message readMessage() throws IOException {
+        while (true) {
+            if (binary) {
+                if (!hasMoreInput()) {
+                    return null;
+                }
+                fieldBudget = WireProtocol.checkFrameLength(readInt()) - WireProtocol.FRAME_HEADER_BYTES;
+                Message message = WireProtocol.toMessage(readByte(), readInt(), readInt(), readField(), readField());
+                if (message != null) {
+                    return message;
+                }
+                continue;
+            }
+            String line = readTextLine();
+            if (line == null) {
+                return null;
+            }
+            if (line.equals(WireProtocol.BINARY_HELLO)) {
+                binary = true;
+                continue;
+            }
+            Message message = WireProtocol.parseMessage(line);
+            if (message != null) {
+                return message;
+            }
+            System.err.println("Not a message, skipped: " + line);
+        }
+    }
+
+    /**
+     * Reads the next message into a view, without building a Message. Lines
+     * that are not messages are skipped.
+     *
+     * @param view
+     * @return false at the end of the stream
+     * @throws IOException
+     */
+    public boolean readView(MessageView view) throws IOException {
+        while (true) {
+            if (binary) {
+                if (!hasMoreInput()) {
+                    return false;
+                }
+                int frameLength = WireProtocol.checkFrameLength(readInt());
+                byte[] frame = view.buffer(4 + frameLength);
+                frame[0] = (byte) (frameLength >>> 24);
+                frame[1] = (byte) (frameLength >>> 16);
+                frame[2] = (byte) (frameLength >>> 8);
+                frame[3] = (byte) frameLength;
+                readFully(frame, 4, frameLength);
+                if (view.parseFrame(4 + frameLength)) {
+                    return true;
+                }
+                continue;
+            }
+            int lineLength = readLineBytes();
+            if (lineLength < 0) {
+                return false;
+            }
+            if (isHello(lineLength)) {
+                binary = true;
+                continue;
+            }
+            System.arraycopy(fieldBytes, 0, view.buffer(lineLength), 0, lineLength);
+            if (view.parseText(lineLength)) {
+                return true;
+            }
+            System.err.println("Not a message, skipped: " + new String(fieldBytes, 0, lineLength, StandardCharsets.UTF_8));
+        }
+    }
+
+    private String readTextLine() throws IOException {
+        int length = readLineBytes();
+        return (length < 0) ? null : new String(fieldBytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a line into fieldBytes
+     *
+     * @return the length of the line without its line break, -1 at the end of
+     *         the stream
+     * @throws IOException
+     */
+    private int readLineBytes() throws IOException {
+        int length = 0;
+        while (true) {
+            if (position == limit && !fill()) {
+                return (length == 0) ? -1 : trimCarriageReturn(length);
+            }
+            byte b = buffer[position++];
+            if (b == '\n') {
+                return trimCarriageReturn(length);
+            }
+            if (length == fieldBytes.length) {
+                growFieldBytes(length * 2);
+            }
+            fieldBytes[length++] = b;
+        }
+    }
+
+    private int trimCarriageReturn(int length) {
+        return (length > 0 && fieldBytes[length - 1] == '\r') ? length - 1 : length;
+    }
+
+    private boolean isHello(int length) {
+        if (length != HELLO_BYTES.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (fieldBytes[i] != HELLO_BYTES[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String readField() throws IOException {
+        int length = readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > fieldBudget) {
+            throw new IOException("Field length " + length + " runs past the frame");
+        }
+        fieldBudget -= length;
+        if (fieldBytes.length < length) {
+            growFieldBytes(length);
+        }
+        readFully(fieldBytes, 0, length);
+        return new String(fieldBytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private void readFully(byte[] target, int offset, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            if (position == limit && !fill()) {
+                throw new EOFException("Truncated frame");
+            }
+            int count = Math.min(length - read, limit - position);
+            System.arraycopy(buffer, position, target, offset + read, count);
+            position += count;
+            read += count;
+        }
+    }
+
+    private int readInt() throws IOException {
+        return ((readByte() & 0xff) << 24) | ((readByte() & 0xff) << 16) | ((readByte() & 0xff) << 8)
+                | (readByte() & 0xff);
+    }
+
+    private byte readByte() throws IOException {
+        if (position == limit && !fill()) {
+            throw new EOFException("Truncated frame");
+        }
+        return buffer[position++];
+    }
+
+    private boolean hasMoreInput() throws IOException {
+        return position < limit || fill();
+    }
+
+    private boolean fill() throws IOException {
+        int read = in.read(buffer, 0, buffer.length);
+        if (read <= 0) {
+            return false;
+        }
+        position = 0;
+        limit = read;
+        return true;
+    }
+
+    private void growFieldBytes(int capacity) {
+        byte[] grown = new byte[Math.max(capacity, fieldBytes.length * 2)];
+        System.arraycopy(fieldBytes, 0, grown, 0, fieldBytes.length);
+        fieldBytes = grown;
+    }
+}
@@ -0,0 +1,230 @@
+package Server;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Flyweight view of one message over a reusable byte buffer, filled by
+ * MessageReader.readView. The message stays in its encoded form, either a
+ * "Type,SeqNo,NodeNo,key:value" text line or a binary frame, and the fields are
+ * only located, not copied. A forwarded write can thus be applied and relayed
+ * with MessageWriter.forward without building a Message or re-encoding it.
+ *
+ * The view is overwritten by the next read; call toMessage to keep a message.
+ */
+public class MessageView {
+    private byte[] bytes = new byte[256];
+    private int length;
+    private boolean binary;
+    private byte type;
+    private int messageOrderNo;
+    private int nodeNumber;
+    private int keyOffset;
+    private int keyLength;
+    // -1 when the content has no ':'
+    private int valueOffset;
+    private int valueLength;
+
+    /**
+     * Buffer of at least the given capacity to read the next message into
+     *
+     * @param capacity
+     * @return
+     */
+    byte[] buffer(int capacity) {
+        if (bytes.length < capacity) {
+            bytes = new byte[Math.max(capacity, bytes.length * 2)];
+        }
+        return bytes;
+    }
+
+    /**
+     * Locates the fields of a text line held in the buffer
+     *
+     * @param lineLength
+     * @return false when the line is not a message
+     */
+    boolean parseText(int lineLength) {
+        binary = false;
+        length = lineLength;
+        int firstComma = indexOf((byte) ',', 0, length);
+        if (firstComma != 1) {
+            return false;
+        }
+        int secondComma = indexOf((byte) ',', firstComma + 1, length);
+        int thirdComma = (secondComma < 0) ? -1 : indexOf((byte) ',', secondComma + 1, length);
+        if (thirdComma < 0) {
+            return false;
+        }
+        type = bytes[0];
+        try {
+            messageOrderNo = (secondComma == firstComma + 1) ? 0 : parseInt(firstComma + 1, secondComma);
+            nodeNumber = parseInt(secondComma + 1, thirdComma);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        keyOffset = thirdComma + 1;
+        int separator = indexOf((byte) ':', keyOffset, length);
+        keyLength = ((separator < 0) ? length : separator) - keyOffset;
+        valueOffset = (separator < 0) ? -1 : separator + 1;
+        valueLength = (separator < 0) ? -1 : length - separator - 1;
+        return true;
+    }
+
+    /**
+     * Locates the fields of a frame held in the buffer, length prefix included
+     *
+     * @param frameLength
+     * @return false when the frame is not a message
+     */
+    boolean parseFrame(int frameLength) {
+        binary = true;
+        length = frameLength;
+        type = bytes[4];
+        messageOrderNo = readInt(5);
+        nodeNumber = readInt(9);
+        int fieldLength = readInt(13);
+        keyOffset = 17;
+        keyLength = Math.max(0, fieldLength);
+        int valueLengthOffset = keyOffset + keyLength;
+        if (valueLengthOffset + 4 > length) {
+            throw new IllegalArgumentException("Malformed frame");
+        }
+        valueLength = readInt(valueLengthOffset);
+        valueOffset = (valueLength < 0) ? -1 : valueLengthOffset + 4;
+        if (keyOffset + keyLength + 4 + Math.max(0, valueLength) != length) {
+            throw new IllegalArgumentException("Malformed frame");
+        }
+        if (type != WireProtocol.RAW_TYPE) {
+            return true;
+        }
+        // A line sent as a raw frame, it is a message only if the line is one
+        if (valueLength < 0) {
+            return false;
+        }
+        System.arraycopy(bytes, valueOffset, bytes, 0, valueLength);
+        return parseText(valueLength);
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public char getType() {
+        return (char) type;
+    }
+
+    public int getMessageOrderNo() {
+        return messageOrderNo;
+    }
+
+    public int getNodeNumber() {
+        return nodeNumber;
+    }
+
+    public boolean hasValue() {
+        return valueOffset >= 0;
+    }
+
+    /**
+     * Parses the key without allocating
+     *
+     * @return
+     */
+    public int parseKey() {
+        return parseInt(keyOffset, keyOffset + keyLength);
+    }
+
+    /**
+     * Decodes the value, null when the content has no ':'
+     *
+     * @return
+     */
+    public String getValue() {
+        return hasValue() ? new String(bytes, valueOffset, valueLength, StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * Copies the view into a Message
+     *
+     * @return
+     */
+    public Message toMessage() {
+        String content = new String(bytes, keyOffset, keyLength, StandardCharsets.UTF_8);
+        if (hasValue()) {
+            content = content + ":" + getValue();
+        }
+        return new Message(String.valueOf(getType()), messageOrderNo, nodeNumber, content);
+    }
+
+    @Override
+    public String toString() {
+        return toMessage().toString();
+    }
+
+    // Encoded bytes and field positions, for MessageWriter.forward
+
+    byte[] bytes() {
+        return bytes;
+    }
+
+    int length() {
+        return length;
+    }
+
+    int keyOffset() {
+        return keyOffset;
+    }
+
+    int keyLength() {
+        return keyLength;
+    }
+
+    int valueOffset() {
+        return valueOffset;
+    }
+
+    int valueLength() {
+        return valueLength;
+    }
+
+    private int indexOf(byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int parseInt(int from, int to) {
+        if (from >= to) {
+            throw new NumberFormatException("Empty number");
+        }
+        boolean negative = bytes[from] == '-';
+        int i = negative ? from + 1 : from;
+        if (i == to) {
+            throw new NumberFormatException("Empty number");
+        }
+        long value = 0;
+        for (; i < to; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Not a number");
+            }
+            value = value * 10 + digit;
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                throw new NumberFormatException("Number too large");
+            }
+        }
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE) {
+            throw new NumberFormatException("Number too large");
+        }
+        return (int) value;
+    }
+
+    private int readInt(int offset) {
+        return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16) | ((bytes[offset + 2] & 0xff) << 8)
+                | (bytes[offset + 3] & 0xff);
+    }
+}
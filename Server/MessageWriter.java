@@ -0,0 +1,337 @@
+package Server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes messages to a client or ring link in either wire format.
+ *
+ * TEXT writes every message as a "Type,SeqNo,NodeNo,content" line.
+ *
+ * BINARY first announces itself with the text line WireProtocol.BINARY_HELLO
+ * and then writes every message as a length-prefixed frame
+ *
+ *      [frame length][type byte][seq no][node no][key length][key][value length][value]
+ *
+ * with the content split at its first ':' into key and value. A value length
+ * of -1 marks content without a ':'. Lines that are not messages, like READY
+ * or client replies, are written as frames of type 0 carrying the line as the
+ * value. Since nothing is delimited by separators, keys and values may hold
+ * commas and line breaks. A text link cannot carry a line break, so a message
+ * holding one is not written there but reported. The head refuses such writes
+ * unless its ring links are binary, see ClientRequestHandler, so this only
+ * happens when nodes use different wireFormat settings.
+ *
+ * Like an autoflushing PrintWriter, every message is flushed when written and
+ * I/O errors are recorded instead of thrown, see checkError. Replicated writes
+ * are the exception: the ReplicationSender of the link lets them collect in the
+ * buffer and flushes them together. Any other message flushes them first.
+ */
+public class MessageWriter {
+    private final DataOutputStream out;
+    private final boolean binary;
+    private boolean error;
+    private boolean deferFlush;
+    private ReplicationSender replicationSender;
+    private final byte[] decimalDigits = new byte[10];
+
+    /**
+     * @param outputStream
+     * @param binary
+     * @param announce send the binary hello first, for links where the reader
+     *                 does not already know the format
+     */
+    public MessageWriter(OutputStream outputStream, boolean binary, boolean announce) {
+        this(outputStream, binary, announce, 65536);
+    }
+
+    /**
+     * @param outputStream
+     * @param binary
+     * @param announce
+     * @param bufferBytes size of the write buffer, the most a batch of
+     *                    replicated writes can hold before it is flushed
+     */
+    public MessageWriter(OutputStream outputStream, boolean binary, boolean announce, int bufferBytes) {
+        this.out = new DataOutputStream(new BufferedOutputStream(outputStream, bufferBytes));
+        this.binary = binary;
+        if (binary && announce) {
+            writeTextLine(WireProtocol.BINARY_HELLO);
+        }
+    }
+
+    /**
+     * Writer in the configured ring wire format
+     *
+     * @param outputStream
+     */
+    public MessageWriter(OutputStream outputStream) {
+        this(outputStream, WireProtocol.isBinaryConfigured(), true,
+                Math.max(512, ConnectionContext.getServerProperty("replicationBatchBytes", 65536)));
+    }
+
+    /**
+     * Batching sender for the replicated writes sent on this link
+     *
+     * @return
+     */
+    public synchronized ReplicationSender getReplicationSender() {
+        if (replicationSender == null) {
+            replicationSender = new ReplicationSender(this);
+        }
+        return replicationSender;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Writes a line, framing it when it is a message and the format is binary
+     *
+     * @param line
+     */
+    public synchronized void println(String line) {
+        if (!binary) {
+            writeTextLine(line);
+            return;
+        }
+        Message message = WireProtocol.parseMessage(line);
+        if (message == null) {
+            writeFrame(WireProtocol.RAW_TYPE, 0, 0, null, line);
+        } else {
+            send(message);
+        }
+    }
+
+    /**
+     * Writes a line that is not a message, such as a reply to a client, as a
+     * raw frame in the binary format
+     *
+     * @param line
+     */
+    public synchronized void printRawLine(String line) {
+        if (binary) {
+            writeFrame(WireProtocol.RAW_TYPE, 0, 0, null, line);
+        } else {
+            writeTextLine(line);
+        }
+    }
+
+    /**
+     * Writes a message
+     *
+     * @param message
+     */
+    public synchronized void send(Message message) {
+        if (!binary) {
+            if (WireProtocol.hasLineBreak(message.getMessageContent())) {
+                reportLineBreak(message.getMessageType(), message.getMessageOrderNo(), message.getNodeNumber());
+                return;
+            }
+            // Written field by field rather than through getForwardMessage
+            try {
+                out.write(message.getMessageType().getBytes(StandardCharsets.UTF_8));
+                out.writeByte(',');
+                writeDecimal(message.getMessageOrderNo());
+                out.writeByte(',');
+                writeDecimal(message.getNodeNumber());
+                out.writeByte(',');
+                out.write(message.getMessageContent().getBytes(StandardCharsets.UTF_8));
+                out.write('\n');
+                flushUnlessDeferred();
+            } catch (IOException e) {
+                error = true;
+            }
+            return;
+        }
+        String content = message.getMessageContent();
+        int separator = content.indexOf(':');
+        String key = (separator < 0) ? content : content.substring(0, separator);
+        String value = (separator < 0) ? null : content.substring(separator + 1);
+        writeFrame((byte) message.getMessageType().charAt(0), message.getMessageOrderNo(), message.getNodeNumber(),
+                key, value);
+    }
+
+    /**
+     * Relays a message read into a view. When the view holds the message in
+     * the format of this writer its bytes are written as they are, otherwise
+     * the fields are copied into the other format, still without decoding
+     * them.
+     *
+     * @param view
+     */
+    public synchronized void forward(MessageView view) {
+        byte[] bytes = view.bytes();
+        try {
+            if (view.isBinary() == binary) {
+                out.write(bytes, 0, view.length());
+                if (!binary) {
+                    out.write('\n');
+                }
+            } else if (binary) {
+                int valueLength = view.valueLength();
+                out.writeInt(WireProtocol.FRAME_HEADER_BYTES + view.keyLength() + Math.max(0, valueLength));
+                out.writeByte(view.getType());
+                out.writeInt(view.getMessageOrderNo());
+                out.writeInt(view.getNodeNumber());
+                out.writeInt(view.keyLength());
+                out.write(bytes, view.keyOffset(), view.keyLength());
+                out.writeInt(valueLength);
+                if (valueLength >= 0) {
+                    out.write(bytes, view.valueOffset(), valueLength);
+                }
+            } else if (WireProtocol.hasLineBreak(bytes, view.keyOffset(), view.keyLength())
+                    || (view.hasValue() && WireProtocol.hasLineBreak(bytes, view.valueOffset(), view.valueLength()))) {
+                reportLineBreak(String.valueOf((char) view.getType()), view.getMessageOrderNo(),
+                        view.getNodeNumber());
+                return;
+            } else {
+                out.writeByte(view.getType());
+                out.writeByte(',');
+                writeDecimal(view.getMessageOrderNo());
+                out.writeByte(',');
+                writeDecimal(view.getNodeNumber());
+                out.writeByte(',');
+                out.write(bytes, view.keyOffset(), view.keyLength());
+                if (view.hasValue()) {
+                    out.writeByte(':');
+                    out.write(bytes, view.valueOffset(), view.valueLength());
+                }
+                out.write('\n');
+            }
+            flushUnlessDeferred();
+        } catch (IOException e) {
+            error = true;
+        }
+    }
+
+    /**
+     * Writes a message without flushing it
+     *
+     * @param message
+     */
+    synchronized void sendDeferred(Message message) {
+        deferFlush = true;
+        try {
+            send(message);
+        } finally {
+            deferFlush = false;
+        }
+    }
+
+    /**
+     * Relays a message read into a view without flushing it
+     *
+     * @param view
+     */
+    synchronized void forwardDeferred(MessageView view) {
+        deferFlush = true;
+        try {
+            forward(view);
+        } finally {
+            deferFlush = false;
+        }
+    }
+
+    /**
+     * Flushes the messages written so far
+     */
+    public synchronized void flush() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            error = true;
+        }
+    }
+
+    /**
+     * True if writing failed, as for PrintWriter
+     *
+     * @return
+     */
+    public synchronized boolean checkError() {
+        return error;
+    }
+
+    public synchronized void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            error = true;
+        }
+    }
+
+    private void writeTextLine(String line) {
+        if (WireProtocol.hasLineBreak(line)) {
+            System.err.println("Line holding a line break not written to a text link: "
+                    + line.substring(0, Math.min(line.length(), 40)));
+            return;
+        }
+        try {
+            out.write(line.getBytes(StandardCharsets.UTF_8));
+            out.write('\n');
+            flushUnlessDeferred();
+        } catch (IOException e) {
+            error = true;
+        }
+    }
+
+    private static void reportLineBreak(String type, int seqNo, int nodeNo) {
+        System.err.println(String.format("%s,%d,%d holds a line break, which a text link cannot carry, not written",
+                type, seqNo, nodeNo));
+    }
+
+    private void writeFrame(byte type, int seqNo, int nodeNo, String key, String value) {
+        byte[] keyBytes = (key == null) ? null : key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = (value == null) ? null : value.getBytes(StandardCharsets.UTF_8);
+        int length = WireProtocol.FRAME_HEADER_BYTES + ((keyBytes == null) ? 0 : keyBytes.length)
+                + ((valueBytes == null) ? 0 : valueBytes.length);
+        try {
+            out.writeInt(length);
+            out.writeByte(type);
+            out.writeInt(seqNo);
+            out.writeInt(nodeNo);
+            writeField(keyBytes);
+            writeField(valueBytes);
+            flushUnlessDeferred();
+        } catch (IOException e) {
+            error = true;
+        }
+    }
+
+    private void flushUnlessDeferred() throws IOException {
+        if (!deferFlush) {
+            out.flush();
+        }
+    }
+
+    private void writeDecimal(int value) throws IOException {
+        if (value < 0) {
+            out.writeByte('-');
+            if (value == Integer.MIN_VALUE) {
+                out.write(Integer.toString(value).substring(1).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            value = -value;
+        }
+        int position = decimalDigits.length;
+        do {
+            decimalDigits[--position] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        out.write(decimalDigits, position, decimalDigits.length - position);
+    }
+
+    private void writeField(byte[] field) throws IOException {
+        if (field == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(field.length);
+            out.write(field);
+        }
+    }
+}
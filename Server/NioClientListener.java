@@ -0,0 +1,365 @@
+package Server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking client front end. One thread accepts connections and hands them
+ * round robin to a small pool of I/O threads, each running its own selector.
+ * Every connection has its own read and write buffer; requests are newline
+ * terminated lines, or binary frames once the client sent the binary hello,
+ * answered in order through the same ClientRequestHandler as the blocking
+ * ClientListener, so a slow or idle client never holds up the others.
+ *
+ * A client that sends requests faster than it reads the replies stops being
+ * read once clientReplyBufferBytes of replies are waiting for it, and is read
+ * again when they have been written. A request may be at most
+ * clientRequestMaxBytes long, a client sending a longer one is disconnected.
+ *
+ * Replies to commit writes arrive later from the thread that saw the commit.
+ * They are queued on their connection and written by its I/O thread. Until an
+ * untagged request got its reply no further requests are handled or read, so
+ * untagged replies stay in request order.
+ */
+public class NioClientListener implements Runnable {
+    private static final int BUFFER_BYTES = 8192;
+    private static final byte[] NACK = "NACK\n".getBytes(StandardCharsets.UTF_8);
+
+    private ConnectionContext connectionContext;
+    private RingManager.RunningFlag runningFlag;
+    private ClientRequestHandler requestHandler;
+    private ServerSocketChannel serverChannel;
+    private Selector acceptSelector;
+    private IoLoop[] ioLoops;
+    private int maxPendingReplyBytes;
+    private int maxRequestBytes;
+
+    public NioClientListener(ConnectionContext connectionContext, RingManager.RunningFlag runningFlag)
+            throws IOException {
+        this.connectionContext = connectionContext;
+        this.runningFlag = runningFlag;
+        this.requestHandler = new ClientRequestHandler(connectionContext);
+        this.maxPendingReplyBytes = Math.max(BUFFER_BYTES,
+                ConnectionContext.getServerProperty("clientReplyBufferBytes", 262144));
+        this.maxRequestBytes = Math.max(BUFFER_BYTES,
+                ConnectionContext.getServerProperty("clientRequestMaxBytes", 1048576));
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(ClientListener.CLIENT_LISTENER_PORT), 1024);
+        serverChannel.configureBlocking(false);
+        // Closing the server socket on shutdown also closes the channel
+        connectionContext.setClientSocketServer(serverChannel.socket());
+        acceptSelector = Selector.open();
+        serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+        int ioThreads = Math.max(1, ConnectionContext.getServerProperty("clientIoThreads", 4));
+        ioLoops = new IoLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            ioLoops[i] = new IoLoop(Selector.open());
+        }
+    }
+
+    @Override
+    public void run() {
+        System.out.println(String.format("NioClientListener Ready with %d I/O threads", ioLoops.length));
+        for (int i = 0; i < ioLoops.length; i++) {
+            Thread ioThread = new Thread(ioLoops[i], "client-io-" + i);
+            ioThread.setDaemon(true);
+            ioThread.start();
+        }
+        int nextLoop = 0;
+        try {
+            while (runningFlag.running && serverChannel.isOpen()) {
+                acceptSelector.select();
+                acceptSelector.selectedKeys().clear();
+                SocketChannel clientChannel;
+                while ((clientChannel = serverChannel.accept()) != null) {
+                    if (!connectionContext.isAcceptingConnections()) {
+                        // Give Replies if not accepting connections
+                        clientChannel.write(ByteBuffer.wrap(NACK));
+                        clientChannel.close();
+                        continue;
+                    }
+                    clientChannel.configureBlocking(false);
+                    clientChannel.socket().setTcpNoDelay(true);
+                    ioLoops[nextLoop].register(clientChannel);
+                    nextLoop = (nextLoop + 1) % ioLoops.length;
+                }
+            }
+        } catch (IOException e) {
+            if (serverChannel.isOpen()) {
+                e.printStackTrace();
+            }
+        } finally {
+            for (IoLoop ioLoop : ioLoops) {
+                ioLoop.stop();
+            }
+        }
+        System.out.println("NioClientListener exiting");
+    }
+
+    /**
+     * Selector loop of one I/O thread
+     */
+    private final class IoLoop implements Runnable {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<ClientConnection> deferredReplies = new ConcurrentLinkedQueue<>();
+        private volatile boolean running = true;
+
+        IoLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void register(SocketChannel channel) {
+            pendingChannels.add(channel);
+            selector.wakeup();
+        }
+
+        void stop() {
+            running = false;
+            selector.wakeup();
+        }
+
+        /**
+         * Has a connection write the replies that arrived for it
+         */
+        void replyArrived(ClientConnection connection) {
+            deferredReplies.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running && runningFlag.running) {
+                try {
+                    selector.select();
+                    SocketChannel channel;
+                    while ((channel = pendingChannels.poll()) != null) {
+                        ClientConnection connection = new ClientConnection(channel, this);
+                        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    }
+                    ClientConnection replied;
+                    while ((replied = deferredReplies.poll()) != null) {
+                        try {
+                            if (replied.key.isValid()) {
+                                replied.writeDeferredReplies();
+                                replied.flush(replied.key);
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            replied.close(replied.key);
+                        }
+                    }
+                    Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                    while (selectedKeys.hasNext()) {
+                        SelectionKey key = selectedKeys.next();
+                        selectedKeys.remove();
+                        ClientConnection connection = (ClientConnection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                connection.read(key);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush(key);
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            // Broken connection
+                            connection.close(key);
+                        } catch (RuntimeException e) {
+                            // Malformed request, only this connection is closed
+                            System.err.println("Closing client connection after a malformed request: " + e);
+                            connection.close(key);
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                ((ClientConnection) key.attachment()).close(key);
+            }
+        }
+    }
+
+    /**
+     * State of one client connection
+     */
+    private final class ClientConnection {
+        private final SocketChannel channel;
+        private final IoLoop ioLoop;
+        private SelectionKey key;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_BYTES);
+        private ByteBuffer writeBuffer = ByteBuffer.allocate(BUFFER_BYTES);
+        private boolean binary;
+        private final WireProtocol.Request frameRequest = new WireProtocol.Request();
+        private final ConcurrentLinkedQueue<String> replies = new ConcurrentLinkedQueue<>();
+        // Untagged requests still waiting for their reply
+        private int untaggedPending;
+        private final ClientRequestHandler.ReplySink replySink = new ClientRequestHandler.ReplySink() {
+            @Override
+            public void reply(String reply) {
+                replies.add(reply);
+                if (Thread.currentThread() != ioThread) {
+                    ioLoop.replyArrived(ClientConnection.this);
+                }
+            }
+        };
+        private final Thread ioThread = Thread.currentThread();
+
+        ClientConnection(SocketChannel channel, IoLoop ioLoop) {
+            this.channel = channel;
+            this.ioLoop = ioLoop;
+            // Kept in read mode, holding the bytes still to be written
+            writeBuffer.flip();
+        }
+
+        void read(SelectionKey key) throws IOException {
+            if (!readBuffer.hasRemaining()) {
+                // A request longer than the buffer
+                if (readBuffer.capacity() >= maxRequestBytes) {
+                    System.out.println("Request from " + channel.socket().getInetAddress()
+                            + " longer than clientRequestMaxBytes, closing the connection");
+                    close(key);
+                    return;
+                }
+                ByteBuffer grown = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, maxRequestBytes));
+                readBuffer.flip();
+                grown.put(readBuffer);
+                readBuffer = grown;
+            }
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                close(key);
+                return;
+            }
+            handleRequests();
+            flush(key);
+        }
+
+        void flush(SelectionKey key) throws IOException {
+            channel.write(writeBuffer);
+            if (!writeBuffer.hasRemaining() && readBuffer.position() > 0) {
+                // Requests held back while the replies were backed up
+                handleRequests();
+                channel.write(writeBuffer);
+            }
+            int interestOps = writeBuffer.hasRemaining() ? SelectionKey.OP_WRITE : 0;
+            if (writeBuffer.remaining() < maxPendingReplyBytes && untaggedPending == 0) {
+                interestOps |= SelectionKey.OP_READ;
+            }
+            key.interestOps(interestOps);
+        }
+
+        /**
+         * Answers the complete requests of the read buffer, as long as the
+         * replies waiting to be written stay below maxPendingReplyBytes
+         */
+        private void handleRequests() {
+            readBuffer.flip();
+            while (readBuffer.hasRemaining() && writeBuffer.remaining() < maxPendingReplyBytes
+                    && untaggedPending == 0) {
+                if (binary) {
+                    if (!WireProtocol.decodeFrame(readBuffer, frameRequest)) {
+                        // Incomplete frame
+                        break;
+                    }
+                    if (frameRequest.message != null) {
+                        // Handled as decoded, without going through a line
+                        if (requestHandler.handleFrame(frameRequest.message, replySink)) {
+                            untaggedPending++;
+                        }
+                        writeDeferredReplies();
+                    } else if (frameRequest.line != null && !frameRequest.line.isEmpty()) {
+                        handleRequest(frameRequest.line);
+                    }
+                    continue;
+                }
+                String request = nextLine();
+                if (request == null) {
+                    break;
+                }
+                if (request.equals(WireProtocol.BINARY_HELLO)) {
+                    // The client switched to binary frames, reply in kind
+                    binary = true;
+                    queueBytes((WireProtocol.BINARY_HELLO + "\n").getBytes(StandardCharsets.UTF_8));
+                } else if (!request.isEmpty()) {
+                    handleRequest(request);
+                }
+            }
+            readBuffer.compact();
+        }
+
+        private void handleRequest(String request) {
+            if (requestHandler.handle(request, replySink)
+                    && !request.startsWith(ClientRequestHandler.REQUEST_ID_PREFIX)) {
+                untaggedPending++;
+            }
+            writeDeferredReplies();
+        }
+
+        /**
+         * Moves the replies that arrived into the write buffer
+         */
+        void writeDeferredReplies() {
+            String reply;
+            while ((reply = replies.poll()) != null) {
+                if (!reply.startsWith(ClientRequestHandler.REQUEST_ID_PREFIX) && untaggedPending > 0) {
+                    untaggedPending--;
+                }
+                queueReply(reply);
+            }
+        }
+
+        void close(SelectionKey key) {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Next complete line of the read buffer, null if there is none yet
+         */
+        private String nextLine() {
+            int lineStart = readBuffer.position();
+            for (int i = lineStart; i < readBuffer.limit(); i++) {
+                if (readBuffer.get(i) == '\n') {
+                    int lineEnd = (i > lineStart && readBuffer.get(i - 1) == '\r') ? i - 1 : i;
+                    readBuffer.position(i + 1);
+                    return new String(readBuffer.array(), lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+                }
+            }
+            return null;
+        }
+
+        private void queueReply(String reply) {
+            if (reply == null) {
+                return;
+            }
+            queueBytes(binary ? WireProtocol.encodeRawFrame(reply) : (reply + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void queueBytes(byte[] replyBytes) {
+            writeBuffer.compact();
+            if (writeBuffer.remaining() < replyBytes.length) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(writeBuffer.capacity() * 2,
+                        writeBuffer.position() + replyBytes.length));
+                writeBuffer.flip();
+                grown.put(writeBuffer);
+                writeBuffer = grown;
+            }
+            writeBuffer.put(replyBytes);
+            writeBuffer.flip();
+        }
+    }
+}
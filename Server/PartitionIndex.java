@@ -0,0 +1,297 @@
+package Server;
+
+import java.util.Set;
+
+/**
+ * Index of the distinct keys owned by one primary partition. Keys are stored as
+ * primitive ints in an open-addressing table, so repeated writes to a key do
+ * not grow the index. Every partition has its own monitor, which keeps writers
+ * to different partitions from contending with each other.
+ *
+ * The index also versions the partition. The head of the chain numbers every
+ * write with the next partition version and the replicas apply it with that
+ * same version, so the versions of a partition agree across its replicas. The
+ * version of each key's latest write is kept next to the key, and the most
+ * recent changes are kept in a bounded change log so that a rejoining replica
+ * can be sent only the keys written after the last version it applied.
+ *
+ * Finally the index keeps the hash of every key's current entry and a Merkle
+ * tree over those hashes, used by anti-entropy to find diverging keys.
+ */
+public class PartitionIndex {
+    private static final int DEFAULT_CAPACITY = 64;
+    private static final int INITIAL_LOG_CAPACITY = 1024;
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private int[] keys;
+    private int[] keyVersions;
+    private long[] keyHashes;
+    private boolean[] used;
+    private int size;
+    private int resizeThreshold;
+
+    private int version;
+    // Version reported in the version vector, held back while diff streams
+    // are received
+    private int syncedVersion;
+    private boolean catchingUp;
+    private final int changeLogLimit;
+    private int[] logKeys = new int[INITIAL_LOG_CAPACITY];
+    private int[] logVersions = new int[INITIAL_LOG_CAPACITY];
+    private int logStart;
+    private int logSize;
+    // Highest version that is no longer covered by the change log
+    private int truncatedVersion;
+
+    private final MerkleTree merkleTree;
+
+    public PartitionIndex(int changeLogLimit, int merkleDepth) {
+        this.changeLogLimit = Math.max(1, changeLogLimit);
+        this.merkleTree = new MerkleTree(merkleDepth);
+        allocate(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Records a write made at the head of the chain, numbering it with the next
+     * version of the partition.
+     *
+     * @param key
+     * @param entryHash hash of the new entry, see MerkleTree.entryHash
+     * @return the version of the write
+     */
+    public synchronized int recordNext(int key, long entryHash) {
+        record(key, version + 1, entryHash);
+        return version;
+    }
+
+    /**
+     * Records a write that already carries its partition version
+     *
+     * @param key
+     * @param writeVersion
+     * @param entryHash hash of the new entry, see MerkleTree.entryHash
+     */
+    public synchronized void record(int key, int writeVersion, long entryHash) {
+        int slot = findSlot(keys, used, key);
+        if (!used[slot]) {
+            keys[slot] = key;
+            used[slot] = true;
+            if (++size > resizeThreshold) {
+                resize();
+                slot = findSlot(keys, used, key);
+            }
+        }
+        keyVersions[slot] = writeVersion;
+        merkleTree.update(key, keyHashes[slot], entryHash);
+        keyHashes[slot] = entryHash;
+        if (writeVersion > version) {
+            version = writeVersion;
+        }
+        if (!catchingUp) {
+            syncedVersion = version;
+        }
+        appendToLog(key, writeVersion);
+    }
+
+    /**
+     * Checks if a key is present in the index
+     *
+     * @param key
+     * @return
+     */
+    public synchronized boolean contains(int key) {
+        return used[findSlot(keys, used, key)];
+    }
+
+    /**
+     * Version of the latest write of a key, 0 if unknown
+     *
+     * @param key
+     * @return
+     */
+    public synchronized int getKeyVersion(int key) {
+        int slot = findSlot(keys, used, key);
+        return used[slot] ? keyVersions[slot] : 0;
+    }
+
+    /**
+     * Latest version applied to this partition
+     *
+     * @return
+     */
+    public synchronized int getVersion() {
+        return version;
+    }
+
+    /**
+     * Latest version up to which every write of this partition is known to be
+     * applied. Diff entries arrive in key order rather than version order, so
+     * while a diff stream is received this stays where it was and only catches
+     * up with getVersion once the stream ends.
+     *
+     * @return
+     */
+    public synchronized int getSyncedVersion() {
+        return syncedVersion;
+    }
+
+    /**
+     * Holds the synced version while diff streams are received, and moves it
+     * to the latest version once they ended
+     *
+     * @param catchingUp
+     */
+    public synchronized void setCatchingUp(boolean catchingUp) {
+        this.catchingUp = catchingUp;
+        if (!catchingUp) {
+            syncedVersion = version;
+        }
+    }
+
+    public MerkleTree getMerkleTree() {
+        return merkleTree;
+    }
+
+    /**
+     * Keys of the index that fall into the given Merkle leaves
+     *
+     * @param leafNodes
+     * @return
+     */
+    public synchronized int[] keysInLeaves(Set<Integer> leafNodes) {
+        int[] matches = new int[size];
+        int count = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (used[i] && leafNodes.contains(merkleTree.leafNodeOf(keys[i]))) {
+                matches[count++] = keys[i];
+            }
+        }
+        int[] result = new int[count];
+        System.arraycopy(matches, 0, result, 0, count);
+        return result;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Returns a point-in-time copy of the keys so that callers can iterate
+     * without holding the partition monitor.
+     *
+     * @return
+     */
+    public synchronized int[] toArray() {
+        int[] result = new int[size];
+        int position = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (used[i]) {
+                result[position++] = keys[i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the distinct keys written after the given version, or null when
+     * the change log no longer reaches back that far and a full transfer is
+     * needed.
+     *
+     * @param sinceVersion
+     * @return
+     */
+    public synchronized int[] changedSince(int sinceVersion) {
+        if (sinceVersion < truncatedVersion) {
+            return null;
+        }
+        int[] changed = new int[logSize];
+        int count = 0;
+        for (int i = 0; i < logSize; i++) {
+            int position = (logStart + i) % logKeys.length;
+            int logVersion = logVersions[position];
+            int key = logKeys[position];
+            // Only the latest change of a key matches its current version, which
+            // drops the earlier entries of keys written more than once
+            if (logVersion > sinceVersion && getKeyVersion(key) == logVersion) {
+                changed[count++] = key;
+            }
+        }
+        int[] result = new int[count];
+        System.arraycopy(changed, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * Forgets the change log. Used after recovering from disk, where the order
+     * of earlier changes is not known.
+     */
+    public synchronized void resetChangeLog() {
+        logStart = 0;
+        logSize = 0;
+        truncatedVersion = version;
+    }
+
+    private void appendToLog(int key, int writeVersion) {
+        if (logSize == logKeys.length) {
+            if (logKeys.length < changeLogLimit) {
+                growLog(Math.min(changeLogLimit, logKeys.length * 2));
+            } else {
+                // Evict the oldest change
+                truncatedVersion = Math.max(truncatedVersion, logVersions[logStart]);
+                logStart = (logStart + 1) % logKeys.length;
+                logSize--;
+            }
+        }
+        int position = (logStart + logSize) % logKeys.length;
+        logKeys[position] = key;
+        logVersions[position] = writeVersion;
+        logSize++;
+    }
+
+    private void growLog(int capacity) {
+        int[] newKeys = new int[capacity];
+        int[] newVersions = new int[capacity];
+        for (int i = 0; i < logSize; i++) {
+            int position = (logStart + i) % logKeys.length;
+            newKeys[i] = logKeys[position];
+            newVersions[i] = logVersions[position];
+        }
+        logKeys = newKeys;
+        logVersions = newVersions;
+        logStart = 0;
+    }
+
+    private static int findSlot(int[] keys, boolean[] used, int key) {
+        int mask = keys.length - 1;
+        int slot = IntHashStorage.mix(key) & mask;
+        while (used[slot] && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void resize() {
+        int[] oldKeys = keys;
+        int[] oldVersions = keyVersions;
+        long[] oldHashes = keyHashes;
+        boolean[] oldUsed = used;
+        allocate(oldKeys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) {
+                int slot = findSlot(keys, used, oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                keyVersions[slot] = oldVersions[i];
+                keyHashes[slot] = oldHashes[i];
+                used[slot] = true;
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        keyVersions = new int[capacity];
+        keyHashes = new long[capacity];
+        used = new boolean[capacity];
+        resizeThreshold = (int) (capacity * LOAD_FACTOR);
+    }
+}
@@ -1,16 +1,17 @@
 package Server;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.Socket;
 
 public class PredecessorListener implements Runnable{
     private ConnectionContext connectionContext;
     private RingMutator ringMutator;
+    private DiffCodec diffDecoder = new DiffCodec(DiffCodec.Encoding.BINARY);
     private int currNodeNumber;
     private int TOTAL_SERVERS;
+    // Highest version applied as the tail and not acked yet, by partition
+    private int[] unackedVersions;
+    private boolean acksPending;
 
     public PredecessorListener(ConnectionContext connectionContext,  RingMutator ringMutator) {
         this.connectionContext = connectionContext;
@@ -24,27 +25,46 @@ public class PredecessorListener implements Runnable{
         if (connectionContext.isAcceptingConnections()) {
             currNodeNumber = ConnectionContext.getNodeID();
             TOTAL_SERVERS = connectionContext.getMaxServers();
-            BufferedReader predReader;
+            unackedVersions = new int[TOTAL_SERVERS];
+            MessageReader predReader;
             try {
                 System.out.println("Predecessor is " + connectionContext.getPredecessor());
                 predReader = connectionContext.getInputReader(connectionContext.getPredecessor());
 
-                String rawMessageContent;
-                while ((rawMessageContent = predReader.readLine()) != null) {
-                    Message message = new Message(rawMessageContent);
-                    System.out.println("Received Message: " + rawMessageContent);
-
-                    if ((message.getMessageType()).equals("W")) {
-                    
-                        handleWriteMessages(message);
+                // Writes are applied and relayed straight from the view, other
+                // messages are copied out of it
+                MessageView view = new MessageView();
+                while (predReader.readView(view)) {
+                    if (view.getType() == 'W') {
+                        boolean moreQueued = predReader.hasBufferedInput();
+                        handleWriteMessages(view, moreQueued);
+                        if (!moreQueued) {
+                            sendTailAcks();
+                        }
+                        continue;
+                    }
+                    Message message = view.toMessage();
+                    System.out.println("Received Message: " + message);
 
-                    } else if ((message.getMessageType()).equals("F")) {
+                    if ((message.getMessageType()).equals("F")) {
                         handleFailureMessages(message);
 
                     } else if ((message.getMessageType()).equals("R")) {
                         handleReconnectionMessages(message);
-                    } else if ((message.getMessageType()).equals("D")) {
-                        connectionContext.getDataStore().addDiffs(message.getMessageContent());
+                    } else if ((message.getMessageType()).equals("D") || (message.getMessageType()).equals("C")) {
+                        DiffStream.receiveChunk(connectionContext.getDataStore(), message, diffDecoder,
+                                connectionContext.getOutputWriter(connectionContext.getPredecessor()));
+                    } else if ((message.getMessageType()).equals("B") || (message.getMessageType()).equals("E")) {
+                        DiffStream.receiveMarker(connectionContext.getDataStore(), message);
+                    } else if ((message.getMessageType()).equals("P")) {
+                        handleHintMessages(message);
+                    } else if ((message.getMessageType()).equals("A")) {
+                        acknowledgeDiffChunk(message);
+                    } else if ((message.getMessageType()).equals("H")) {
+                        connectionContext.getAntiEntropy().handleHashReply(message);
+                    }
+                    if (!predReader.hasBufferedInput()) {
+                        sendTailAcks();
                     }
                 }
             } catch (IOException e) {
@@ -56,27 +76,87 @@ public class PredecessorListener implements Runnable{
     }
 
     // On getting a write message from the predecessor, add it to the datastore and decide to forward it.
-    private void handleWriteMessages(Message message) throws IOException {
+    private void handleWriteMessages(MessageView view, boolean moreQueued) throws IOException {
         // Check if correct node number
-        int messageNodeNumber = message.getNodeNumber();
+        int messageNodeNumber = view.getNodeNumber();
         int potSecondaryNode = ((messageNodeNumber + 1) % TOTAL_SERVERS);
         int potTertiaryNode = ((messageNodeNumber + 2) % TOTAL_SERVERS);
-        if (currNodeNumber ==  potSecondaryNode || currNodeNumber == potTertiaryNode) {
+        if ((currNodeNumber ==  potSecondaryNode || currNodeNumber == potTertiaryNode) && view.hasValue()) {
             // Directly do the write with priority
-            String[] KVPair = message.getMessageContent().split(":",2);
-            connectionContext.getDataStore().writeData(Integer.parseInt(KVPair[0]), KVPair[1], messageNodeNumber);
+            int key = view.parseKey();
+            String value = view.getValue();
             int successorNode = connectionContext.getSuccessor();
-            // Forward the message if server present
-            if (successorNode == potTertiaryNode) {
-                System.out.println("The successor node is :" + successorNode);
-                PrintWriter sucWriter = connectionContext.getOutputWriter(successorNode);
-                sucWriter.println(message.getForwardMessage());
+            boolean tail = successorNode != potTertiaryNode;
+            CraqReads craqReads = connectionContext.getCraqReads();
+            if (craqReads != null && !tail) {
+                craqReads.beginWrite(messageNodeNumber, key);
+            }
+            // Skipped when not newer than the local copy, still relayed and acked
+            boolean applied = connectionContext.getDataStore().writeData(key, value, messageNodeNumber,
+                    view.getMessageOrderNo());
+            if (applied) {
+                connectionContext.getHintedHandoff().hint(messageNodeNumber, key, view.getMessageOrderNo(), value);
+            }
+            if (craqReads != null) {
+                if (!applied && !tail) {
+                    craqReads.abortWrite(messageNodeNumber, key);
+                } else if (tail) {
+                    // The tail only applies committed writes
+                    craqReads.commit(messageNodeNumber, view.getMessageOrderNo());
+                } else {
+                    craqReads.endWrite(messageNodeNumber, key, view.getMessageOrderNo(), value);
+                }
+            }
+            // Forward the message if server present, as it was received, batched
+            // with the writes that arrived along with it
+            if (!tail) {
+                MessageWriter sucWriter = connectionContext.getOutputWriter(successorNode);
+                sucWriter.getReplicationSender().forward(view, moreQueued);
+            } else {
+                // This node is the tail of the chain, ack once the run of writes ends
+                unackedVersions[messageNodeNumber] = Math.max(unackedVersions[messageNodeNumber],
+                        view.getMessageOrderNo());
+                acksPending = true;
             }
         } else {
             System.out.println("Incorrect Message Received. Rejected.");
         }
     }
 
+    /**
+     * Acks the writes applied as the tail back up the chain, one cumulative
+     * "T,version,partition," per partition
+     */
+    private void sendTailAcks() {
+        if (!acksPending) {
+            return;
+        }
+        acksPending = false;
+        try {
+            MessageWriter predWriter = connectionContext.getOutputWriter(connectionContext.getPredecessor());
+            for (int partition = 0; partition < unackedVersions.length; partition++) {
+                if (unackedVersions[partition] > 0) {
+                    predWriter.send(new Message("T", unackedVersions[partition], partition, ""));
+                    unackedVersions[partition] = 0;
+                }
+            }
+        } catch (IOException e) {
+            // The predecessor is gone, its replacement does not wait on these
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Apply a write replayed from the predecessor's hint log. Hints are not
+     * forwarded, the successor received them while this node was away.
+     * @param message
+     */
+    private void handleHintMessages(Message message) {
+        String[] KVPair = message.getMessageContent().split(":",2);
+        connectionContext.getDataStore().applyDiff(message.getNodeNumber(), Integer.parseInt(KVPair[0]),
+                message.getMessageOrderNo(), KVPair[1]);
+    }
+
     /**
      * handle failure of predecessor or successor
      * @param message
@@ -95,7 +175,7 @@ public class PredecessorListener implements Runnable{
                 oldSocket.close();
             }
             // Restarting itself
-            Thread replacement = new Thread(new PredecessorListener(connectionContext, ringMutator));
+            Thread replacement = ServerThreads.newThread(new PredecessorListener(connectionContext, ringMutator), "predecessor-listener");
             connectionContext.predecessorListener = replacement;
             replacement.start();
             connectionContext.startSL();
@@ -110,15 +190,21 @@ public class PredecessorListener implements Runnable{
      */
     private void handleReconnectionMessages(Message message) throws IOException {
         System.out.println("Sending Diff Messages");
-        PrintWriter predWriter = connectionContext.getOutputWriter(connectionContext.getPredecessor());
-        String diffs = String.format("D,,%d,%s",currNodeNumber,connectionContext.getDataStore().getDiffs(message.getNodeNumber()));
-        predWriter.println(diffs);
+        MessageWriter predWriter = connectionContext.getOutputWriter(connectionContext.getPredecessor());
+        new DiffStream(connectionContext, message.getNodeNumber(), message.getMessageContent(), predWriter).start();
+    }
+
+    private void acknowledgeDiffChunk(Message message) {
+        DiffStream diffStream = connectionContext.getDiffStream(message.getNodeNumber());
+        if (diffStream != null) {
+            diffStream.acknowledge();
+        }
     }
 
      private void addToConnectionContext(int tempNodeId, Socket tempSocket) throws IOException {
         connectionContext.addConnection(tempNodeId, tempSocket);
-        connectionContext.addInputReader(tempNodeId, new BufferedReader(new InputStreamReader(tempSocket.getInputStream()), 65536));
-        connectionContext.addOutputWriter(tempNodeId, new PrintWriter(tempSocket.getOutputStream(), true)); // setting autoflush to true
+        connectionContext.addInputReader(tempNodeId, new MessageReader(tempSocket.getInputStream()));
+        connectionContext.addOutputWriter(tempNodeId, new MessageWriter(tempSocket.getOutputStream())); // flushes every message
     }
 
 }
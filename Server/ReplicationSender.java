@@ -0,0 +1,116 @@
+package Server;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the replicated writes of one successor link in batches. A write is
+ * flushed at once when the caller has nothing else queued, so a lone write is
+ * not delayed. When more writes are waiting they collect in the buffer of the
+ * link's MessageWriter and are flushed together: when the buffer is full
+ * (replicationBatchBytes), when the caller runs out of queued writes, or at the
+ * latest replicationFlushMicros after the first of them was written.
+ * replicationFlushMicros=0 flushes every write.
+ *
+ * The link buffers at most replicationBatchBytes. Beyond that sending blocks on
+ * the socket until the successor reads, which holds up the workers (so the
+ * write queues fill and clients are told to retry) and the predecessor
+ * listener (so it stops reading from its predecessor). The time spent blocked
+ * is counted, see getStats.
+ */
+public class ReplicationSender {
+    private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "replication-flusher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final MessageWriter writer;
+    private final long maxDelayMicros;
+    // Guarded by the writer
+    private boolean flushScheduled;
+    private long writesSent;
+    private long flushes;
+    private long blockedNanos;
+    private final Runnable deadlineFlush = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (writer) {
+                if (flushScheduled) {
+                    flushScheduled = false;
+                    long start = System.nanoTime();
+                    writer.flush();
+                    flushes++;
+                    blockedNanos += System.nanoTime() - start;
+                }
+            }
+        }
+    };
+
+    ReplicationSender(MessageWriter writer) {
+        this.writer = writer;
+        this.maxDelayMicros = ConnectionContext.getServerProperty("replicationFlushMicros", 200);
+    }
+
+    /**
+     * Sends a write
+     *
+     * @param message
+     * @param moreQueued true when the caller already holds further writes for
+     *                   this link, so the flush may wait for them
+     */
+    public void send(Message message, boolean moreQueued) {
+        synchronized (writer) {
+            long start = System.nanoTime();
+            writer.sendDeferred(message);
+            flushOrSchedule(moreQueued);
+            writesSent++;
+            blockedNanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Relays a write read into a view
+     *
+     * @param view
+     * @param moreQueued see send
+     */
+    public void forward(MessageView view, boolean moreQueued) {
+        synchronized (writer) {
+            long start = System.nanoTime();
+            writer.forwardDeferred(view);
+            flushOrSchedule(moreQueued);
+            writesSent++;
+            blockedNanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Writes sent, flushes and the time spent writing to the link
+     *
+     * @return
+     */
+    public String getStats() {
+        synchronized (writer) {
+            return String.format("Successor link: %d writes sent in %d flushes, %d ms spent sending", writesSent,
+                    flushes, blockedNanos / 1000000L);
+        }
+    }
+
+    private void flushOrSchedule(boolean moreQueued) {
+        if (!moreQueued || maxDelayMicros <= 0) {
+            flushScheduled = false;
+            writer.flush();
+            flushes++;
+        } else if (!flushScheduled) {
+            flushScheduled = true;
+            FLUSHER.schedule(deadlineFlush, maxDelayMicros, TimeUnit.MICROSECONDS);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package Server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures the write-to-replicated latency of the chain and the fan-out
+ * replication topology: the time from the head applying a write until both
+ * replicas have applied it. Three nodes run in this JVM, joined by loopback
+ * links built from the same MessageWriter, ReplicationSender, MessageReader and
+ * DataStore as the ring.
+ *
+ * "chain" relays every write head -> second replica -> third replica, "fanout"
+ * sends it from the head to both replicas at once. Writes are sent one at a
+ * time so that the latencies are not queueing delays. Loopback hops are much
+ * cheaper than network hops; linkDelayMicros adds that much latency to every
+ * hop, as a replica waits that long before it handles a write it received.
+ *
+ * Usage: java Server.ReplicationTopologyBenchmark [writes] [valueBytes] [linkDelayMicros]
+ */
+public class ReplicationTopologyBenchmark {
+    private static final PrintStream DISCARD = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    });
+
+    private static long linkDelayNanos;
+
+    public static void main(String[] args) throws Exception {
+        int writes = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+        int valueBytes = (args.length > 1) ? Integer.parseInt(args[1]) : 32;
+        linkDelayNanos = ((args.length > 2) ? Long.parseLong(args[2]) : 0) * 1000L;
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < valueBytes; i++) {
+            value.append((char) ('a' + i % 26));
+        }
+        PrintStream out = System.out;
+        System.out.println(String.format("%d writes with %d byte values, %d us link delay", writes, valueBytes,
+                linkDelayNanos / 1000L));
+        // The DataStore logs every write
+        System.setOut(DISCARD);
+        try {
+            // Warm up before measuring
+            run(false, writes / 2, value.toString());
+            run(true, writes / 2, value.toString());
+            report(out, "chain", run(false, writes, value.toString()));
+            report(out, "fanout", run(true, writes, value.toString()));
+        } finally {
+            System.setOut(out);
+        }
+        System.exit(0);
+    }
+
+    private static void report(PrintStream out, String name, long[] latencies) {
+        Arrays.sort(latencies);
+        out.println(String.format("%-8s p50 %7.1f us   p99 %7.1f us   max %8.1f us", name,
+                percentile(latencies, 0.50) / 1000.0, percentile(latencies, 0.99) / 1000.0,
+                latencies[latencies.length - 1] / 1000.0));
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))];
+    }
+
+    /**
+     * Replicates the writes one at a time
+     *
+     * @param fanOut
+     * @param writes
+     * @param value
+     * @return the latency of every write in nanoseconds
+     */
+    private static long[] run(boolean fanOut, int writes, String value) throws IOException, InterruptedException {
+        DataStore head = new DataStore(new HashMapStorage());
+        Semaphore replicated = new Semaphore(0);
+        ServerSocket listener = new ServerSocket(0, 10, InetAddress.getLoopbackAddress());
+        // The third replica, fed by the head in fan-out and by the second replica in the chain
+        Socket toThird = connect(listener);
+        MessageWriter thirdLink = new MessageWriter(toThird.getOutputStream());
+        startReplica(listener.accept(), null, replicated);
+        Socket toSecond = connect(listener);
+        MessageWriter secondLink = new MessageWriter(toSecond.getOutputStream());
+        startReplica(listener.accept(), fanOut ? null : thirdLink, replicated);
+        listener.close();
+
+        long[] latencies = new long[writes];
+        for (int i = 0; i < writes; i++) {
+            int key = i % 10000;
+            long start = System.nanoTime();
+            int version = head.writeData(key, value, 0);
+            Message message = new Message("W", version, 0, key + ":" + value);
+            secondLink.getReplicationSender().send(message, false);
+            if (fanOut) {
+                thirdLink.getReplicationSender().send(message, false);
+            }
+            replicated.acquire(fanOut ? 2 : 1);
+            latencies[i] = System.nanoTime() - start;
+        }
+        toSecond.close();
+        toThird.close();
+        return latencies;
+    }
+
+    private static Socket connect(ServerSocket listener) throws IOException {
+        Socket socket = new Socket(listener.getInetAddress(), listener.getLocalPort());
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+
+    /**
+     * Replica applying the writes it receives and relaying them on the next
+     * link, if any. Writes that are not relayed count as replicated.
+     */
+    private static void startReplica(final Socket link, final MessageWriter next, final Semaphore replicated)
+            throws IOException {
+        link.setTcpNoDelay(true);
+        final DataStore dataStore = new DataStore(new HashMapStorage());
+        final MessageReader reader = new MessageReader(link.getInputStream());
+        Thread replica = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                MessageView view = new MessageView();
+                try {
+                    while (reader.readView(view)) {
+                        if (linkDelayNanos > 0) {
+                            LockSupport.parkNanos(linkDelayNanos);
+                        }
+                        dataStore.writeData(view.parseKey(), view.getValue(), view.getNodeNumber(),
+                                view.getMessageOrderNo());
+                        if (next != null) {
+                            next.getReplicationSender().forward(view, reader.hasBufferedInput());
+                        } else {
+                            replicated.release();
+                        }
+                    }
+                } catch (IOException e) {
+                    // Link closed at the end of the run
+                }
+            }
+        }, "replica");
+        replica.setDaemon(true);
+        replica.start();
+    }
+}
@@ -20,12 +20,30 @@ public class RingManager {
         loadRingProperties();
         final ConnectionContext connectionContext = new ConnectionContext();
         RingMutator ringMutator = new RingMutator(connectionContext);
+        // Create data storage. Loads the latest snapshot and the log tail before
+        // the node joins the ring.
+        connectionContext.setDataStore();
+        connectionContext.setHintedHandoff(new HintedHandoff(connectionContext.getMaxServers()));
+        connectionContext.setAntiEntropy(new AntiEntropy(connectionContext, runningFlag,
+                ConnectionContext.getServerProperty("antiEntropySeconds", 60)));
         // Create the connections
         ringMutator.createInitialLinks();
-        // Create data storage
-        connectionContext.setDataStore();
+        connectionContext.getDataStore().startCheckpointing();
         // Create the write queue
         connectionContext.setWriteQueue();
+        // readConsistency=craq serves strongly consistent reads from every replica
+        if (CraqReads.isConfigured()) {
+            connectionContext.setCraqReads(new CraqReads(connectionContext));
+        }
+        connectionContext.setCommitTracker();
+        // replicationTopology=fanout sends writes from the head to both replicas
+        if (FanOutReplicator.isConfigured()) {
+            FanOutReplicator fanOutReplicator = new FanOutReplicator(connectionContext, runningFlag);
+            connectionContext.setFanOutReplicator(fanOutReplicator);
+            Thread fanOutThread = new Thread(fanOutReplicator, "fanout-listener");
+            fanOutThread.setDaemon(true);
+            fanOutThread.start();
+        }
         System.out.println("Beginning Request Handling");
         System.out.println("========================================\n");
 
@@ -36,6 +54,9 @@ public class RingManager {
                 System.out.println("Ctrl+C detected. Shutting down...");
                 runningFlag.running = false;
 
+                // Flush pending log records before the process exits
+                connectionContext.getDataStore().close();
+
                 // Shutdown all the socket servers.
                 try {
                     connectionContext.getClientServerSocket().close();
@@ -51,21 +72,43 @@ public class RingManager {
          *      listen to server predecessors,
          *      listen to server successors,
          *      listen for resurructed nodes,
-         *      worker thread that does the storage work.
+         *      worker threads that do the storage work, one per partition.
          * 
          */
 
-        Thread workerThread = new Thread(new Worker(connectionContext, runningFlag));
-        workerThread.start();
+        Thread[] workerThreads = new Thread[connectionContext.getWriteQueue().getPartitionCount()];
+        for (int partition = 0; partition < workerThreads.length; partition++) {
+            workerThreads[partition] = new Thread(new Worker(connectionContext, runningFlag, partition),
+                    "worker-" + partition);
+            workerThreads[partition].start();
+        }
 
-        Thread ServerListenerThread = new Thread(new ServerListener(connectionContext, ringMutator));
+        Thread ServerListenerThread = ServerThreads.newThread(new ServerListener(connectionContext, ringMutator), "server-listener");
         ServerListenerThread.start();
-        Thread clientListenerThread = new Thread(new ClientListener(connectionContext, runningFlag));
+        // clientListener picks the client front end: blocking (default) or nio
+        Runnable clientListener = "nio".equalsIgnoreCase(ConnectionContext.getServerProperty("clientListener", "blocking"))
+                ? new NioClientListener(connectionContext, runningFlag)
+                : new ClientListener(connectionContext, runningFlag);
+        if (connectionContext.getCraqReads() != null && clientListener instanceof ClientListener
+                && !ServerThreads.isVirtual()) {
+            System.out.println("Warning: CRAQ version queries wait behind the client served by the blocking "
+                    + "listener, use clientListener=nio or threadMode=virtual");
+        }
+        Thread clientListenerThread = new Thread(clientListener);
         clientListenerThread.start();
 
+        int antiEntropySeconds = ConnectionContext.getServerProperty("antiEntropySeconds", 60);
+        if (antiEntropySeconds > 0) {
+            Thread antiEntropyThread = new Thread(connectionContext.getAntiEntropy(), "anti-entropy");
+            antiEntropyThread.setDaemon(true);
+            antiEntropyThread.start();
+        }
+
         runServerCLI(connectionContext, ringMutator);
         connectionContext.closeChannels();
-        workerThread.interrupt();
+        for (Thread workerThread : workerThreads) {
+            workerThread.interrupt();
+        }
         ServerListenerThread.interrupt();
         System.out.println("Main thread exiting.");
     }
@@ -75,6 +118,7 @@ public class RingManager {
      * 1. Print - displays all the key value pairs present at a particular node.
      * 2. Rebel - Forces a server to delete all its links and mark itself as failed. Simulation of node failure.
      * 3. Resurrect - Reestablishes connectivity with neighbors and rejoins the ring store.
+     * 4. Stats - displays the write queue depths, refused writes, writes in flight and successor link counters.
      * 
      * @param connectionContext
      * @param ringMutator
@@ -98,6 +142,19 @@ public class RingManager {
                     System.out.println("  print     - Display the current contents of the datastore");
                     System.out.println("  rebel     - Force the server to destory its links and stop actions");
                     System.out.println("  resurruct - Pleads with the other servers for mercy and joins the Ring again");
+                    System.out.println("  stats     - Display write queue depths and successor link counters");
+                    break;
+
+                case "stats":
+                    System.out.println(connectionContext.getWriteQueue().getStats());
+                    System.out.println(connectionContext.getCommitTracker().getStats());
+                    if (connectionContext.getCraqReads() != null) {
+                        System.out.println(connectionContext.getCraqReads().getStats());
+                    }
+                    Integer successor = connectionContext.getSuccessor();
+                    if (successor != null && connectionContext.getConnectionSocket(successor) != null) {
+                        System.out.println(connectionContext.getOutputWriter(successor).getReplicationSender().getStats());
+                    }
                     break;
 
                 case "print":
@@ -113,9 +170,9 @@ public class RingManager {
                 case "resurrect":
                     // The resurruction is upon us
                     ringMutator.resurrect();
-                    successorListenerThread = new Thread(new SuccessorListener(connectionContext, ringMutator));
+                    successorListenerThread = ServerThreads.newThread(new SuccessorListener(connectionContext, ringMutator), "successor-listener");
                     successorListenerThread.start();
-                    predecessorListenerThread = new Thread(new PredecessorListener(connectionContext, ringMutator));
+                    predecessorListenerThread = ServerThreads.newThread(new PredecessorListener(connectionContext, ringMutator), "predecessor-listener");
                     predecessorListenerThread.start();
                     break;
 
@@ -1,9 +1,6 @@
 package Server;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
@@ -117,9 +114,9 @@ public class RingMutator {
      */
     public void sendReadySignal(int successorNode) throws IOException {
         Socket successorSocket = connectionContext.getConnectionHash().get(successorNode);
-        PrintWriter printWriter = new PrintWriter(successorSocket.getOutputStream(), true); // setting autoflush to true
-        connectionContext.addOutputWriter(successorNode, printWriter);
-        printWriter.println("READY");
+        MessageWriter messageWriter = new MessageWriter(successorSocket.getOutputStream()); // flushes every message
+        connectionContext.addOutputWriter(successorNode, messageWriter);
+        messageWriter.println("READY");
     }
 
     /**
@@ -135,8 +132,7 @@ public class RingMutator {
      */
     public void acceptReadySignal(int predecessorNode) throws IOException {
         Socket predecessorSocket = connectionContext.getConnectionHash().get(predecessorNode);
-        BufferedReader in = new BufferedReader(new InputStreamReader(predecessorSocket.getInputStream()), 65536); // 64KB
-                                                                                                                  // Buffer
+        MessageReader in = new MessageReader(predecessorSocket.getInputStream()); // 64KB Buffer
         while (!in.readLine().equals("READY")) {
         }
         connectionContext.addInputReader(predecessorNode, in);
@@ -177,14 +173,14 @@ public class RingMutator {
     private void sendFailMessage() throws IOException {
         int predeccessor = connectionContext.getPredecessor();
         int successor = connectionContext.getSuccessor();
-        PrintWriter sucWriter = connectionContext.getOutputWriter(successor);
+        MessageWriter sucWriter = connectionContext.getOutputWriter(successor);
         sucWriter.println(String.format("F,%d,%d,", predeccessor, NodeId));
         try {
             Thread.sleep(50);
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
-        PrintWriter predecessorWriter = connectionContext.getOutputWriter(predeccessor);
+        MessageWriter predecessorWriter = connectionContext.getOutputWriter(predeccessor);
         predecessorWriter.println(String.format("F,%d,%d,", successor, NodeId));
     }
 
@@ -193,6 +189,7 @@ public class RingMutator {
      */
     public void resurrect() {
         try {
+            connectionContext.getDataStore().abandonDiffStreams();
             sendRequestToPredecessor();
             sendRequestToSuccessor();
             connectionContext.startAcceptingConnections();
@@ -215,10 +212,13 @@ public class RingMutator {
                 System.out.println("Connected to Successor " + potSuccessor);
                 connectionContext.setSuccessor(potSuccessor);
                 Socket newSocket = connectionContext.getConnectionSocket(potSuccessor);
-                BufferedReader in = new BufferedReader(new InputStreamReader(newSocket.getInputStream()), 65536);
+                MessageReader in = new MessageReader(newSocket.getInputStream());
                 connectionContext.addInputReader(potSuccessor, in);
-                PrintWriter out = new PrintWriter(newSocket.getOutputStream(), true); // setting autoflush to true
-                out.println(String.format("R,,%d,", currNodeId));
+                // Registered so that later messages go through the same writer
+                MessageWriter out = new MessageWriter(newSocket.getOutputStream());
+                connectionContext.addOutputWriter(potSuccessor, out);
+                // Carry the applied partition versions so that only newer changes are sent back
+                out.println(String.format("R,,%d,%s", currNodeId, DiffStream.rejoinRequest(connectionContext.getDataStore().getVersionVector(currNodeId))));
                 break;
             }
         }
@@ -238,10 +238,13 @@ public class RingMutator {
                 System.out.println("Connected to Predecessor " + potPredecessor);
                 connectionContext.setPredecessor(potPredecessor);
                 Socket newSocket = connectionContext.getConnectionSocket(potPredecessor);
-                BufferedReader in = new BufferedReader(new InputStreamReader(newSocket.getInputStream()), 65536);
+                MessageReader in = new MessageReader(newSocket.getInputStream());
                 connectionContext.addInputReader(potPredecessor, in);
-                PrintWriter out = new PrintWriter(newSocket.getOutputStream(), true); // setting autoflush to true
-                out.println(String.format("R,,%d,", currNodeId));
+                // Registered so that later messages go through the same writer
+                MessageWriter out = new MessageWriter(newSocket.getOutputStream());
+                connectionContext.addOutputWriter(potPredecessor, out);
+                // Carry the applied partition versions so that only newer changes are sent back
+                out.println(String.format("R,,%d,%s", currNodeId, DiffStream.rejoinRequest(connectionContext.getDataStore().getVersionVector(currNodeId))));
                 break;
             }
         }
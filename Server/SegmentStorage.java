@@ -0,0 +1,349 @@
+package Server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Log-structured storage engine that keeps values off heap. Values are appended
+ * as UTF-8 bytes to memory-mapped segment files and the in-heap index only maps
+ * a key to the location of its latest record. Every record is
+ * [key][value length][value bytes], and a location packs the segment id in the
+ * upper 32 bits and the record offset in the lower 32 bits.
+ *
+ * Overwrites leave dead records behind. A background compactor copies the live
+ * records of sealed segments whose dead fraction passes a threshold into the
+ * active segment and then deletes the old segment file.
+ *
+ * Durability is provided by the write-ahead log and snapshots. Segment files
+ * left over from a previous run are discarded on startup.
+ */
+public class SegmentStorage implements StorageEngine, Runnable {
+    private static final int RECORD_HEADER_BYTES = 8;
+
+    private final File directory;
+    private final int segmentSize;
+    private final double compactionThreshold;
+    private final int compactionIntervalSeconds;
+    private final IntLongMap index = new IntLongMap();
+    private final ConcurrentHashMap<Integer, Segment> segments = new ConcurrentHashMap<>();
+    private final Object appendLock = new Object();
+    private volatile Segment activeSegment;
+    private int nextSegmentId;
+    private volatile boolean running = true;
+    private Thread compactor;
+
+    public SegmentStorage(File directory, long segmentSize, double compactionThreshold, int compactionIntervalSeconds)
+            throws IOException {
+        this.directory = directory;
+        if (segmentSize > Integer.MAX_VALUE) {
+            // A single mapping and the record offsets are limited to 2 GB
+            System.err.println("Segment size " + segmentSize + " is larger than 2 GB, using " + Integer.MAX_VALUE);
+            segmentSize = Integer.MAX_VALUE;
+        }
+        this.segmentSize = (int) segmentSize;
+        this.compactionThreshold = compactionThreshold;
+        this.compactionIntervalSeconds = compactionIntervalSeconds;
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create segment directory " + directory);
+        }
+        File[] staleSegments = directory.listFiles();
+        if (staleSegments != null) {
+            for (File staleSegment : staleSegments) {
+                if (staleSegment.getName().startsWith("segment-") && !staleSegment.delete()) {
+                    System.err.println("Unable to delete stale segment " + staleSegment);
+                }
+            }
+        }
+        synchronized (appendLock) {
+            activeSegment = createSegment(this.segmentSize);
+        }
+    }
+
+    @Override
+    public void put(int key, String value) {
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        long previous;
+        synchronized (appendLock) {
+            // The index is updated under the append lock so that two writes to
+            // the same key land in the index in the order they were appended
+            previous = index.put(key, append(key, valueBytes, 0, valueBytes.length));
+        }
+        if (previous != IntLongMap.NO_VALUE) {
+            markDead(previous);
+        }
+    }
+
+    @Override
+    public String get(int key) {
+        while (true) {
+            long location = index.get(key);
+            if (location == IntLongMap.NO_VALUE) {
+                return null;
+            }
+            Segment segment = segments.get(segmentOf(location));
+            if (segment != null) {
+                return segment.readValue(offsetOf(location));
+            }
+            // The segment was compacted away after the index lookup. The index
+            // already points at the moved record.
+        }
+    }
+
+    @Override
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Visits a copy of the keys taken from the index, so the visitor runs
+     * without holding any index stripe lock
+     */
+    @Override
+    public void forEach(EntryVisitor visitor) {
+        final int[][] keys = { new int[Math.max(16, index.size())] };
+        final int[] count = new int[1];
+        index.forEach(new IntLongMap.EntryVisitor() {
+            @Override
+            public void visit(int key, long location) {
+                if (count[0] == keys[0].length) {
+                    keys[0] = Arrays.copyOf(keys[0], count[0] * 2);
+                }
+                keys[0][count[0]++] = key;
+            }
+        });
+        for (int i = 0; i < count[0]; i++) {
+            int key = keys[0][i];
+            String value = get(key);
+            if (value != null) {
+                visitor.visit(key, value);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder result = new StringBuilder("{");
+        forEach(new EntryVisitor() {
+            @Override
+            public void visit(int key, String value) {
+                if (result.length() > 1) {
+                    result.append(", ");
+                }
+                result.append(key).append("=").append(value);
+            }
+        });
+        return result.append("}").toString();
+    }
+
+    /**
+     * Starts the background compactor
+     */
+    public synchronized void startCompaction() {
+        compactor = new Thread(this, "segment-compactor");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    /**
+     * Stops the compactor and closes and deletes every segment file
+     */
+    public synchronized void stop() {
+        running = false;
+        if (compactor != null) {
+            compactor.interrupt();
+            try {
+                compactor.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            compactor = null;
+        }
+        synchronized (appendLock) {
+            for (Segment segment : segments.values()) {
+                try {
+                    segment.close();
+                } catch (IOException e) {
+                    System.err.println("Unable to close segment " + segment.file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Compaction loop
+     */
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                Thread.sleep(compactionIntervalSeconds * 1000L);
+                compact();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (IOException | IllegalStateException e) {
+                System.err.println("Segment compaction failed");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Rewrites the live records of every sealed segment whose dead fraction is
+     * at least the compaction threshold and deletes those segments.
+     *
+     * @throws IOException
+     */
+    public void compact() throws IOException {
+        List<Segment> candidates = new ArrayList<>();
+        for (Segment segment : segments.values()) {
+            if (segment != activeSegment && segment.deadFraction() >= compactionThreshold) {
+                candidates.add(segment);
+            }
+        }
+        for (Segment segment : candidates) {
+            long start = System.currentTimeMillis();
+            int moved = 0;
+            ByteBuffer view = segment.buffer.duplicate();
+            int offset = 0;
+            int end = segment.writePosition;
+            while (offset < end) {
+                int key = view.getInt(offset);
+                int length = view.getInt(offset + 4);
+                long location = locationOf(segment.id, offset);
+                if (index.get(key) == location) {
+                    byte[] valueBytes = new byte[length];
+                    view.position(offset + RECORD_HEADER_BYTES);
+                    view.get(valueBytes);
+                    synchronized (appendLock) {
+                        long newLocation = append(key, valueBytes, 0, length);
+                        if (index.replace(key, location, newLocation)) {
+                            moved++;
+                        } else {
+                            // Overwritten while being moved
+                            markDead(newLocation);
+                        }
+                    }
+                }
+                offset += RECORD_HEADER_BYTES + length;
+            }
+            segments.remove(segment.id);
+            segment.close();
+            System.out.println(String.format("Compacted segment %d: moved %d live records in %d ms", segment.id, moved,
+                    System.currentTimeMillis() - start));
+        }
+    }
+
+    /**
+     * Appends a record to the active segment, sealing it and starting a new one
+     * when it is full. Caller holds the append lock.
+     */
+    private long append(int key, byte[] valueBytes, int valueOffset, int length) {
+        int recordSize = RECORD_HEADER_BYTES + length;
+        if (activeSegment.remaining() < recordSize) {
+            try {
+                activeSegment = createSegment(Math.max(segmentSize, recordSize));
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to create a new segment", e);
+            }
+        }
+        Segment segment = activeSegment;
+        int offset = segment.writePosition;
+        ByteBuffer writeView = segment.writeView;
+        writeView.position(offset);
+        writeView.putInt(key).putInt(length).put(valueBytes, valueOffset, length);
+        segment.writePosition = offset + recordSize;
+        return locationOf(segment.id, offset);
+    }
+
+    private void markDead(long location) {
+        Segment segment = segments.get(segmentOf(location));
+        if (segment != null) {
+            segment.deadBytes.addAndGet(RECORD_HEADER_BYTES + segment.buffer.getInt(offsetOf(location) + 4));
+        }
+    }
+
+    /**
+     * Caller holds the append lock
+     */
+    private Segment createSegment(int size) throws IOException {
+        int id = nextSegmentId++;
+        Segment segment = new Segment(id, new File(directory, "segment-" + id + ".dat"), size);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private static long locationOf(int segmentId, int offset) {
+        return ((long) segmentId << 32) | (offset & 0xffffffffL);
+    }
+
+    private static int segmentOf(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int offsetOf(long location) {
+        return (int) location;
+    }
+
+    /**
+     * One memory-mapped segment file
+     */
+    private static final class Segment {
+        final int id;
+        final File file;
+        final RandomAccessFile randomAccessFile;
+        final MappedByteBuffer buffer;
+        final ByteBuffer writeView;
+        final AtomicLong deadBytes = new AtomicLong();
+        volatile int writePosition;
+
+        Segment(int id, File file, int size) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.randomAccessFile = new RandomAccessFile(file, "rw");
+            this.buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            this.writeView = buffer.duplicate();
+        }
+
+        int remaining() {
+            return buffer.capacity() - writePosition;
+        }
+
+        double deadFraction() {
+            int written = writePosition;
+            return (written == 0) ? 0 : (double) deadBytes.get() / written;
+        }
+
+        /**
+         * Decodes a value straight from the mapped region
+         */
+        String readValue(int offset) {
+            ByteBuffer view = buffer.duplicate();
+            int length = view.getInt(offset + 4);
+            view.limit(offset + RECORD_HEADER_BYTES + length).position(offset + RECORD_HEADER_BYTES);
+            return StandardCharsets.UTF_8.decode(view).toString();
+        }
+
+        /**
+         * Closes and deletes the file. The mapping stays readable until it is
+         * garbage collected, so readers that already hold this segment finish
+         * safely.
+         */
+        void close() throws IOException {
+            randomAccessFile.close();
+            if (!file.delete()) {
+                System.err.println("Unable to delete segment " + file);
+            }
+        }
+    }
+}
@@ -1,9 +1,6 @@
 package Server;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
@@ -58,6 +55,8 @@ public class ServerListener implements Runnable{
                     //Restart the Successor listener
                     System.out.println("Valid Successor Detected");
                     addToConnectionContext(tempNodeId, tempSocket);
+                    // Send the writes it missed before any new write reaches it
+                    connectionContext.getHintedHandoff().replay(tempNodeId, connectionContext.getOutputWriter(tempNodeId));
                     restartSuccessor(tempNodeId);
                 } else if (checkValidPredecessor(tempNodeId)) {
                     // Restart Predecessor
@@ -79,8 +78,8 @@ public class ServerListener implements Runnable{
      */
     private void addToConnectionContext(int tempNodeId, Socket tempSocket) throws IOException {
         connectionContext.addConnection(tempNodeId, tempSocket);
-        connectionContext.addInputReader(tempNodeId, new BufferedReader(new InputStreamReader(tempSocket.getInputStream()), 65536));
-        connectionContext.addOutputWriter(tempNodeId, new PrintWriter(tempSocket.getOutputStream(), true)); // setting autoflush to true
+        connectionContext.addInputReader(tempNodeId, new MessageReader(tempSocket.getInputStream()));
+        connectionContext.addOutputWriter(tempNodeId, new MessageWriter(tempSocket.getOutputStream())); // flushes every message
     }
 
     /**
@@ -88,7 +87,7 @@ public class ServerListener implements Runnable{
      */
     private void startSuccessorThread() {
         System.out.println("Starting Successor Thread");
-        successorListener = new Thread(new SuccessorListener(connectionContext, ringMutator));
+        successorListener = ServerThreads.newThread(new SuccessorListener(connectionContext, ringMutator), "successor-listener");
         successorListener.start();
         connectionContext.successorListener = successorListener;
     }
@@ -98,7 +97,7 @@ public class ServerListener implements Runnable{
      */
     private void startPredecessorThread() {
         System.out.println("Starting predecessor Thread");
-        predecessorListener = new Thread(new PredecessorListener(connectionContext, ringMutator));
+        predecessorListener = ServerThreads.newThread(new PredecessorListener(connectionContext, ringMutator), "predecessor-listener");
         predecessorListener.start();
         connectionContext.predecessorListener = predecessorListener;
     }
@@ -0,0 +1,74 @@
+package Server;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Creates the threads that serve connections: client connections and the ring
+ * listeners. The threadMode server property selects platform threads (default)
+ * or virtual threads. Virtual threads need a Java 21 runtime; they are created
+ * reflectively so the server still builds for older releases, and on a runtime
+ * without them the platform mode is used.
+ */
+public final class ServerThreads {
+    private static volatile Boolean virtual;
+    private static Method ofVirtual;
+    private static Method builderName;
+    private static Method builderUnstarted;
+
+    private ServerThreads() {
+    }
+
+    /**
+     * True when connection threads are virtual threads
+     *
+     * @return
+     */
+    public static boolean isVirtual() {
+        if (virtual == null) {
+            synchronized (ServerThreads.class) {
+                if (virtual == null) {
+                    virtual = "virtual".equalsIgnoreCase(ConnectionContext.getServerProperty("threadMode", "platform"))
+                            && loadVirtualThreadBuilder();
+                    System.out.println("Connection threads: " + (virtual ? "virtual" : "platform"));
+                }
+            }
+        }
+        return virtual;
+    }
+
+    /**
+     * Unstarted thread running the task, virtual or platform depending on the
+     * thread mode
+     *
+     * @param task
+     * @param name
+     * @return
+     */
+    public static Thread newThread(Runnable task, String name) {
+        if (isVirtual()) {
+            try {
+                Object builder = builderName.invoke(ofVirtual.invoke(null), name);
+                return (Thread) builderUnstarted.invoke(builder, task);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                System.err.println("Unable to create a virtual thread. Using a platform thread.");
+            }
+        }
+        return new Thread(task, name);
+    }
+
+    private static boolean loadVirtualThreadBuilder() {
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builderName = builderClass.getMethod("name", String.class);
+            builderUnstarted = builderClass.getMethod("unstarted", Runnable.class);
+            // Fails on runtimes where virtual threads are a disabled preview
+            ofVirtual.invoke(null);
+            return true;
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            System.err.println("Virtual threads are not available on this runtime. Using platform threads.");
+            return false;
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package Server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes periodic point-in-time snapshots of the DataStore and loads the latest
+ * one on startup. A snapshot is a directory named after the WAL generation that
+ * was started right before it was taken, holding one file per partition -
+ *
+ *      snapshot-<generation>/partition-<partition>.snap
+ *
+ * Every partition file is [magic][format][partition][count] followed by count
+ * records of [key][version][value length][UTF-8 value bytes]. Files are written
+ * in parallel and loaded in parallel through a read-only memory mapping. Once a
+ * snapshot is complete the WAL generations before it are deleted, so a
+ * restarted node only replays the tail of changes.
+ */
+public class SnapshotManager implements Runnable {
+    private static final int MAGIC = 0x52534E50; // "RSNP"
+    private static final int FORMAT_VERSION = 2;
+    private static final int HEADER_BYTES = 16;
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String PARTITION_PREFIX = "partition-";
+
+    private final DataStore dataStore;
+    private final File directory;
+    private final int intervalSeconds;
+    private final int ioThreads;
+    private long lastGeneration;
+    private volatile boolean running = true;
+
+    public SnapshotManager(DataStore dataStore, File directory, int intervalSeconds, int ioThreads) {
+        this.dataStore = dataStore;
+        this.directory = directory;
+        this.intervalSeconds = intervalSeconds;
+        this.ioThreads = Math.max(1, ioThreads);
+    }
+
+    /**
+     * Loads the newest complete snapshot into the DataStore.
+     *
+     * @return the WAL generation replay should start from, 0 without a snapshot
+     * @throws IOException
+     */
+    public long loadLatestSnapshot() throws IOException {
+        File latest = findLatestSnapshot();
+        if (latest == null) {
+            System.out.println("No snapshot found in " + directory);
+            return 0;
+        }
+        long start = System.currentTimeMillis();
+        File[] partitionFiles = latest.listFiles();
+        List<Callable<Integer>> loaders = new ArrayList<>();
+        for (final File partitionFile : partitionFiles) {
+            if (partitionFile.getName().startsWith(PARTITION_PREFIX)) {
+                loaders.add(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws IOException {
+                        return loadPartition(partitionFile);
+                    }
+                });
+            }
+        }
+        int loaded = 0;
+        for (int count : runAll(loaders)) {
+            loaded += count;
+        }
+        lastGeneration = generationOf(latest);
+        System.out.println(String.format("Loaded %d keys from %s in %d ms", loaded, latest.getName(),
+                System.currentTimeMillis() - start));
+        return lastGeneration;
+    }
+
+    /**
+     * Takes a snapshot of every partition and drops the WAL generations and
+     * older snapshots it replaces.
+     *
+     * @throws IOException
+     */
+    public synchronized void checkpoint() throws IOException {
+        long start = System.currentTimeMillis();
+        // Writes logged from here on land in the new generation and are replayed
+        // on top of the snapshot, so the snapshot does not need to stop writers.
+        long generation = dataStore.rollWriteAheadLog();
+        if (generation <= lastGeneration) {
+            generation = lastGeneration + 1;
+        }
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create snapshot directory " + directory);
+        }
+        final File tempDirectory = new File(directory, SNAPSHOT_PREFIX + generation + ".tmp");
+        deleteRecursively(tempDirectory);
+        if (!tempDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + tempDirectory);
+        }
+
+        List<Callable<Integer>> writers = new ArrayList<>();
+        for (final int partition : dataStore.getPartitionNumbers()) {
+            writers.add(new Callable<Integer>() {
+                @Override
+                public Integer call() throws IOException {
+                    return writePartition(partition, new File(tempDirectory, PARTITION_PREFIX + partition + ".snap"));
+                }
+            });
+        }
+        int written = 0;
+        for (int count : runAll(writers)) {
+            written += count;
+        }
+
+        File snapshotDirectory = new File(directory, SNAPSHOT_PREFIX + generation);
+        if (!tempDirectory.renameTo(snapshotDirectory)) {
+            throw new IOException("Unable to publish snapshot " + snapshotDirectory);
+        }
+        lastGeneration = generation;
+        dataStore.truncateWriteAheadLog(generation);
+        deleteSnapshotsBefore(generation);
+        System.out.println(String.format("Checkpoint %d: %d keys in %d ms", generation, written,
+                System.currentTimeMillis() - start));
+    }
+
+    /**
+     * Periodic checkpoint loop
+     */
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                Thread.sleep(intervalSeconds * 1000L);
+                checkpoint();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (IOException e) {
+                System.err.println("Checkpoint failed");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    private int writePartition(int partition, File partitionFile) throws IOException {
+        int count = 0;
+        try (FileOutputStream fileOut = new FileOutputStream(partitionFile)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 65536));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(partition);
+            out.writeInt(0);
+            for (int key : dataStore.getPartitionKeys(partition)) {
+                String value = dataStore.readData(key);
+                if (value == null) {
+                    continue;
+                }
+                byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(key);
+                out.writeInt(dataStore.getKeyVersion(key, partition));
+                out.writeInt(valueBytes.length);
+                out.write(valueBytes);
+                count++;
+            }
+            out.flush();
+            ByteBuffer countBuffer = ByteBuffer.allocate(4);
+            countBuffer.putInt(count).flip();
+            fileOut.getChannel().write(countBuffer, 12);
+            fileOut.getChannel().force(true);
+        }
+        return count;
+    }
+
+    private int loadPartition(File partitionFile) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(partitionFile, "r");
+                FileChannel channel = file.getChannel()) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (mapped.remaining() < HEADER_BYTES || mapped.getInt() != MAGIC || mapped.getInt() != FORMAT_VERSION) {
+                throw new IOException("Not a snapshot file: " + partitionFile);
+            }
+            int partition = mapped.getInt();
+            int count = mapped.getInt();
+            byte[] valueBytes = new byte[256];
+            for (int i = 0; i < count; i++) {
+                int key = mapped.getInt();
+                int version = mapped.getInt();
+                int length = mapped.getInt();
+                if (valueBytes.length < length) {
+                    valueBytes = new byte[Math.max(length, valueBytes.length * 2)];
+                }
+                mapped.get(valueBytes, 0, length);
+                dataStore.restoreEntry(key, new String(valueBytes, 0, length, StandardCharsets.UTF_8), partition,
+                        version);
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Runs the tasks on a short-lived pool and waits for all of them
+     */
+    private List<Integer> runAll(List<Callable<Integer>> tasks) throws IOException {
+        List<Integer> results = new ArrayList<>();
+        if (tasks.isEmpty()) {
+            return results;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(ioThreads, tasks.size()));
+        try {
+            for (Future<Integer> future : pool.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted during snapshot I/O", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Snapshot I/O failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return results;
+    }
+
+    private File findLatestSnapshot() {
+        File latest = null;
+        File[] candidates = directory.listFiles();
+        if (candidates == null) {
+            return null;
+        }
+        for (File candidate : candidates) {
+            if (isSnapshotDirectory(candidate) && (latest == null || generationOf(candidate) > generationOf(latest))) {
+                latest = candidate;
+            }
+        }
+        return latest;
+    }
+
+    private void deleteSnapshotsBefore(long generation) {
+        File[] candidates = directory.listFiles();
+        if (candidates == null) {
+            return;
+        }
+        for (File candidate : candidates) {
+            if (isSnapshotDirectory(candidate) && generationOf(candidate) < generation) {
+                deleteRecursively(candidate);
+            }
+        }
+    }
+
+    private static boolean isSnapshotDirectory(File file) {
+        return file.isDirectory() && file.getName().matches(SNAPSHOT_PREFIX + "\\d+");
+    }
+
+    private static long generationOf(File snapshotDirectory) {
+        return Long.parseLong(snapshotDirectory.getName().substring(SNAPSHOT_PREFIX.length()));
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            System.err.println("Unable to delete " + file);
+        }
+    }
+}
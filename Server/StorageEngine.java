@@ -0,0 +1,48 @@
+package Server;
+
+/**
+ * Storage engine behind the DataStore. Maps integer keys to their values. The
+ * DataStore keeps the partition metadata and delegates the raw key-value
+ * storage to an implementation of this interface, selected with the
+ * storageEngine property in serverNodes.properties.
+ */
+public interface StorageEngine {
+
+    /**
+     * Insert or overwrite the value stored for a key
+     *
+     * @param key
+     * @param value
+     */
+    void put(int key, String value);
+
+    /**
+     * Returns the value stored for a key, or null if the key is not present
+     *
+     * @param key
+     * @return
+     */
+    String get(int key);
+
+    /**
+     * Number of keys present in storage
+     *
+     * @return
+     */
+    int size();
+
+    /**
+     * Visits every key-value pair present in storage. Concurrent writes may or
+     * may not be seen by the visitor.
+     *
+     * @param visitor
+     */
+    void forEach(EntryVisitor visitor);
+
+    /**
+     * Callback used to iterate over the storage contents
+     */
+    interface EntryVisitor {
+        void visit(int key, String value);
+    }
+}
@@ -1,13 +1,12 @@
 package Server;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.net.Socket;
 
 public class SuccessorListener implements Runnable {
     private ConnectionContext connectionContext;
     private RingMutator ringMutator;
+    private DiffCodec diffDecoder = new DiffCodec(DiffCodec.Encoding.BINARY);
 
     public SuccessorListener(ConnectionContext connectionContext,  RingMutator ringMutator) {
         this.connectionContext = connectionContext;
@@ -19,21 +18,22 @@ public class SuccessorListener implements Runnable {
         System.out.println("SuccessorListener monitoring failures");
         try {
             int successorNode = connectionContext.getSuccessor();
-            BufferedReader sucReader = connectionContext.getInputReader(successorNode);
+            MessageReader sucReader = connectionContext.getInputReader(successorNode);
             // Wait and read a failure.
-            String rawMessageContent;
-            while ((rawMessageContent = sucReader.readLine()) != null) {
-                Message message = new Message(rawMessageContent);
-                System.out.println("Received Message: " + rawMessageContent);
+            Message message;
+            while ((message = sucReader.readMessage()) != null) {
+                System.out.println("Received Message: " + message);
 
                 if ((message.getMessageType()).equals("F")) {
+                    // Keep the writes the leaving node misses until it rejoins
+                    connectionContext.getHintedHandoff().startHinting(message.getNodeNumber());
                     Socket oldSocket = connectionContext.removeConnection(successorNode);
                     oldSocket.close();
                     // Delay for predecessor to restart
                     Thread.sleep(100);
                     // Attempt to contact new successor
                     connectToNewSuccessor(message);
-                    Thread replacement = new Thread(new SuccessorListener(connectionContext, ringMutator));
+                    Thread replacement = ServerThreads.newThread(new SuccessorListener(connectionContext, ringMutator), "successor-listener");
                     connectionContext.successorListener = replacement;
                     replacement.start();
                     break;
@@ -41,8 +41,22 @@ public class SuccessorListener implements Runnable {
                     // get diffs and send it back immediately
                     handleReconnectionMessages(message); 
                     
-                } else if ((message.getMessageType()).equals("D")) {
-                    connectionContext.getDataStore().addDiffs(message.getMessageContent());
+                } else if ((message.getMessageType()).equals("D") || (message.getMessageType()).equals("C")) {
+                    DiffStream.receiveChunk(connectionContext.getDataStore(), message, diffDecoder,
+                            connectionContext.getOutputWriter(successorNode));
+                } else if ((message.getMessageType()).equals("B") || (message.getMessageType()).equals("E")) {
+                    DiffStream.receiveMarker(connectionContext.getDataStore(), message);
+                } else if ((message.getMessageType()).equals("A")) {
+                    acknowledgeDiffChunk(message);
+                } else if ((message.getMessageType()).equals("M")) {
+                    // Merkle hashes requested by the successor's anti-entropy
+                    MessageWriter sucWriter = connectionContext.getOutputWriter(successorNode);
+                    sucWriter.println(connectionContext.getAntiEntropy().handleHashRequest(message));
+                } else if ((message.getMessageType()).equals("K")) {
+                    MessageWriter sucWriter = connectionContext.getOutputWriter(successorNode);
+                    sucWriter.println(connectionContext.getAntiEntropy().handleKeyRequest(message));
+                } else if ((message.getMessageType()).equals("T")) {
+                    handleTailAck(message);
                 }
             }
         } catch (IOException | InterruptedException e) {
@@ -78,8 +92,38 @@ public class SuccessorListener implements Runnable {
      */
     private void handleReconnectionMessages(Message message) throws IOException {
         System.out.println("Sending Diff Messages");
-        PrintWriter sucWriter = connectionContext.getOutputWriter(connectionContext.getSuccessor());
-        String diffs = String.format("D,,%d,%s",ConnectionContext.getNodeID(),connectionContext.getDataStore().getDiffs(message.getNodeNumber()));
-        sucWriter.println(diffs);
+        MessageWriter sucWriter = connectionContext.getOutputWriter(connectionContext.getSuccessor());
+        new DiffStream(connectionContext, message.getNodeNumber(), message.getMessageContent(), sucWriter).start();
+    }
+
+    /**
+     * An ack from the tail of a chain. Relayed to the predecessor while it is
+     * further up the chain of the partition, recorded if this node is its head.
+     * @param message
+     * @throws IOException
+     */
+    private void handleTailAck(Message message) throws IOException {
+        int partition = message.getNodeNumber();
+        int totalServers = connectionContext.getMaxServers();
+        int currNodeId = ConnectionContext.getNodeID();
+        Integer predecessor = connectionContext.getPredecessor();
+        boolean predecessorInChain = predecessor != null && currNodeId != partition
+                && (predecessor == partition || (predecessor == (partition + 1) % totalServers
+                        && currNodeId == (partition + 2) % totalServers));
+        if (predecessorInChain) {
+            if (connectionContext.getCraqReads() != null) {
+                connectionContext.getCraqReads().commit(partition, message.getMessageOrderNo());
+            }
+            connectionContext.getOutputWriter(predecessor).send(message);
+        } else {
+            connectionContext.getCommitTracker().acknowledge(partition, message.getMessageOrderNo());
+        }
+    }
+
+    private void acknowledgeDiffChunk(Message message) {
+        DiffStream diffStream = connectionContext.getDiffStream(message.getNodeNumber());
+        if (diffStream != null) {
+            diffStream.acknowledge();
+        }
     }
 }
@@ -0,0 +1,183 @@
+package Server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Constants and helpers of the two wire formats, see MessageWriter for the
+ * frame layout. The wireFormat server property selects the format this node
+ * writes on its ring links. Readers follow the format announced by the other
+ * side, so nodes using different formats still understand each other.
+ */
+public final class WireProtocol {
+    public static final String BINARY_HELLO = "WIRE binary";
+    // type, seq no, node no, key length, value length
+    static final int FRAME_HEADER_BYTES = 17;
+    static final byte RAW_TYPE = 0;
+    private static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * One client request as read from a link: a text line or raw frame, which
+     * may be tagged, or the message of a binary frame
+     */
+    static final class Request {
+        String line;
+        Message message;
+
+        void setLine(String line) {
+            this.line = line;
+            this.message = null;
+        }
+
+        void setMessage(Message message) {
+            this.line = null;
+            this.message = message;
+        }
+    }
+
+    private WireProtocol() {
+    }
+
+    /**
+     * True when a message cannot be written as a text line, its content holding
+     * a line break
+     *
+     * @param content
+     * @return
+     */
+    static boolean hasLineBreak(String content) {
+        return content.indexOf('\n') >= 0 || content.indexOf('\r') >= 0;
+    }
+
+    static boolean hasLineBreak(byte[] bytes, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (bytes[i] == '\n' || bytes[i] == '\r') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * True when ring links are written in the binary format
+     *
+     * @return
+     */
+    public static boolean isBinaryConfigured() {
+        return "binary".equalsIgnoreCase(ConnectionContext.getServerProperty("wireFormat", "text"));
+    }
+
+    /**
+     * Parses a text line into a message
+     *
+     * @param line
+     * @return the message, null when the line is not a message
+     */
+    static Message parseMessage(String line) {
+        try {
+            Message message = new Message(line);
+            return (message.getMessageType().length() == 1) ? message : null;
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Builds the message held by the fields of a frame
+     *
+     * @return the message, or for a raw frame the message its line holds, which
+     *         is null when the line is not a message
+     */
+    static Message toMessage(byte type, int seqNo, int nodeNo, String key, String value) {
+        if (type == RAW_TYPE) {
+            return parseMessage(value);
+        }
+        String content = (key == null) ? "" : key;
+        if (value != null) {
+            content = content + ":" + value;
+        }
+        return new Message(String.valueOf((char) type), seqNo, nodeNo, content);
+    }
+
+    /**
+     * Checks a frame length read from the wire
+     *
+     * @param length
+     * @return
+     */
+    static int checkFrameLength(int length) {
+        if (length < FRAME_HEADER_BYTES || length > MAX_FRAME_BYTES) {
+            throw new IllegalArgumentException("Invalid frame length " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Decodes the next frame of a buffer in read mode into a request, as used
+     * by the NIO client listener. The buffer is left untouched until a whole
+     * frame is available.
+     *
+     * @param buffer
+     * @param request receives the line of a raw frame or the message of any
+     *                other frame
+     * @return false when the frame is incomplete
+     */
+    static boolean decodeFrame(ByteBuffer buffer, Request request) {
+        if (buffer.remaining() < 4) {
+            return false;
+        }
+        int start = buffer.position();
+        int length = checkFrameLength(buffer.getInt(start));
+        if (buffer.remaining() < 4 + length) {
+            return false;
+        }
+        int end = start + 4 + length;
+        buffer.position(start + 4);
+        byte type = buffer.get();
+        int seqNo = buffer.getInt();
+        int nodeNo = buffer.getInt();
+        String key = readField(buffer, end);
+        String value = readField(buffer, end);
+        buffer.position(end);
+        if (type == RAW_TYPE) {
+            request.setLine(value);
+        } else {
+            request.setMessage(toMessage(type, seqNo, nodeNo, key, value));
+        }
+        return true;
+    }
+
+    /**
+     * Encodes a reply line as a raw frame
+     *
+     * @param line
+     * @return
+     */
+    static byte[] encodeRawFrame(String line) {
+        byte[] lineBytes = line.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(4 + FRAME_HEADER_BYTES + lineBytes.length);
+        frame.putInt(FRAME_HEADER_BYTES + lineBytes.length).put(RAW_TYPE).putInt(0).putInt(0).putInt(-1)
+                .putInt(lineBytes.length).put(lineBytes);
+        return frame.array();
+    }
+
+    /**
+     * Reads a length-prefixed field that has to end within the frame
+     */
+    private static String readField(ByteBuffer buffer, int frameEnd) {
+        if (frameEnd - buffer.position() < 4) {
+            throw new IllegalArgumentException("Truncated frame field");
+        }
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > frameEnd - buffer.position()) {
+            throw new IllegalArgumentException("Field length " + length + " runs past the frame");
+        }
+        String field = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+                StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return field;
+    }
+}
@@ -1,43 +1,72 @@
 package Server;
 
 import java.io.IOException;
-import java.io.PrintWriter;
 
+/**
+ * Applies the client writes of one partition at the head of its chain and
+ * forwards them to the successor, or to both replicas at once in the fan-out
+ * topology. Blocks while the partition has no writes, or has as many writes
+ * awaiting the tail's ack as the commit window allows.
+ */
 public class Worker implements Runnable{
     private WriteQueue writeQueue;
     private ConnectionContext connectionContext;
     private RingManager.RunningFlag runningFlag;
+    private int partition;
 
-    public Worker(ConnectionContext connectionContext, RingManager.RunningFlag runningFlag) {
+    public Worker(ConnectionContext connectionContext, RingManager.RunningFlag runningFlag, int partition) {
         this.connectionContext = connectionContext;
         this.runningFlag = runningFlag;
         this.writeQueue = connectionContext.getWriteQueue();
+        this.partition = partition;
     }
 
     @Override
     public void run() {
         int TOTAL_SERVERS = connectionContext.getMaxServers();
         int successorNode;
+        CommitTracker commitTracker = connectionContext.getCommitTracker();
         while(runningFlag.running) {
             try {
-                if (writeQueue.peekWriteQueue() != null) {
-                    successorNode = connectionContext.getSuccessor();
-                    // Handle the write to the current copy
-                    Message topMessage = writeQueue.pollWriteQueue();
-                    String[] KVPair = topMessage.getMessageContent().split(":",2);
-                    connectionContext.getDataStore().writeData(Integer.parseInt(KVPair[0]), KVPair[1], topMessage.getNodeNumber());
+                commitTracker.awaitWindow(partition);
+                Message topMessage = writeQueue.takeWriteQueue(partition);
+                successorNode = connectionContext.getSuccessor();
+                // Handle the write to the current copy
+                String content = topMessage.getMessageContent();
+                int separator = content.indexOf(':');
+                int key = Integer.parseInt(content.substring(0, separator));
+                String value = content.substring(separator + 1);
+                CraqReads craqReads = connectionContext.getCraqReads();
+                if (craqReads != null) {
+                    craqReads.beginWrite(partition, key);
+                }
+                int version = connectionContext.getDataStore().writeData(key, value, topMessage.getNodeNumber());
+                if (craqReads != null) {
+                    // Dirty until the tail acks it
+                    craqReads.endWrite(partition, key, version, value);
+                }
+                connectionContext.getHintedHandoff().hint(topMessage.getNodeNumber(), key, version, value);
+                // Replicas apply the write with the partition version assigned here
+                topMessage.setMessageOrderNo(version);
 
-                    // Forward the message
+                // Send the message to both replicas, or down the chain
+                FanOutReplicator fanOutReplicator = connectionContext.getFanOutReplicator();
+                boolean replicated = false;
+                if (fanOutReplicator != null
+                        && fanOutReplicator.replicate(topMessage, writeQueue.hasReadyWrite(partition))) {
+                    replicated = true;
+                } else {
                     int messageNodeNumber = topMessage.getNodeNumber();
                     int potSecondaryNode = ((messageNodeNumber + 1) % TOTAL_SERVERS);
                     int potTertiaryNode = ((messageNodeNumber + 2) % TOTAL_SERVERS);
                     if (successorNode ==  potSecondaryNode || successorNode == potTertiaryNode) {
-                        PrintWriter sucWriter = connectionContext.getOutputWriter(successorNode);
-                        sucWriter.println(topMessage.getForwardMessage());
+                        MessageWriter sucWriter = connectionContext.getOutputWriter(successorNode);
+                        sucWriter.getReplicationSender().send(topMessage, writeQueue.hasReadyWrite(partition));
+                        replicated = true;
                     }
-                } else {
-                    Thread.sleep(3);
                 }
+                // Committed once the tail acks it, at once if there is no replica
+                commitTracker.applied(partition, version, topMessage.getCommitWaiter(), replicated);
             } catch (InterruptedException ie) {
                 Thread.currentThread().interrupt();
                 break;
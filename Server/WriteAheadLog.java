@@ -0,0 +1,396 @@
+package Server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of every write applied to the DataStore. Each record is
+ * framed as [payload length][crc32][partition][key][version][value bytes] so a torn
+ * record at the tail is detected and dropped on replay. The log is split into
+ * numbered generation files (prefix-generation.wal); a checkpoint rolls to a
+ * new generation and deletes the ones its snapshot already covers.
+ *
+ * Three sync policies are supported -
+ *      ALWAYS - every append is written and forced to disk before returning.
+ *      GROUP  - appends are batched in memory and a flusher thread writes and
+ *               forces the batch every groupCommitMillis, or as soon as
+ *               groupCommitRecords records are pending. Writers never wait on
+ *               the fsync.
+ *      OS     - every append is written to the file and left to the OS page
+ *               cache. Survives a process crash but not a machine crash.
+ */
+public class WriteAheadLog {
+    private static final int HEADER_BYTES = 8;
+    private static final int RECORD_FIELDS_BYTES = 12;
+    private static final int INITIAL_BATCH_BYTES = 64 * 1024;
+
+    public enum SyncPolicy {
+        ALWAYS, GROUP, OS;
+
+        public static SyncPolicy fromName(String name) {
+            try {
+                return valueOf(name.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.err.println("Unknown WAL sync policy " + name + ". Using GROUP.");
+                return GROUP;
+            }
+        }
+    }
+
+    /**
+     * Callback used to replay the log
+     */
+    public interface RecordVisitor {
+        void visit(int partition, int key, int version, String value);
+    }
+
+    private final File directory;
+    private final String prefix;
+    private final SyncPolicy syncPolicy;
+    private final int groupCommitMillis;
+    private final int groupCommitRecords;
+    private final CRC32 crc = new CRC32();
+    private final Object flushLock = new Object();
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private long generation;
+    private ByteBuffer activeBatch = ByteBuffer.allocate(INITIAL_BATCH_BYTES);
+    private ByteBuffer flushingBatch = ByteBuffer.allocate(INITIAL_BATCH_BYTES);
+    private int pendingRecords;
+    private volatile boolean open;
+    private Thread flusherThread;
+
+    public WriteAheadLog(File directory, String prefix, SyncPolicy syncPolicy, int groupCommitMillis,
+            int groupCommitRecords) {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.syncPolicy = syncPolicy;
+        this.groupCommitMillis = Math.max(1, groupCommitMillis);
+        this.groupCommitRecords = Math.max(1, groupCommitRecords);
+    }
+
+    /**
+     * Reads every valid record of the generations starting at fromGeneration,
+     * in order. A corrupt or partially written tail of the newest generation is
+     * cut off so that new appends follow the last good record. Must be called
+     * before open().
+     *
+     * @param visitor
+     * @param fromGeneration
+     * @return number of records replayed
+     * @throws IOException
+     */
+    public int replay(RecordVisitor visitor, long fromGeneration) throws IOException {
+        int records = 0;
+        List<Long> generations = listGenerations();
+        for (int i = 0; i < generations.size(); i++) {
+            if (generations.get(i) >= fromGeneration) {
+                boolean newest = (i == generations.size() - 1);
+                records += replayFile(generationFile(generations.get(i)), visitor, newest);
+            }
+        }
+        return records;
+    }
+
+    private int replayFile(File logFile, RecordVisitor visitor, boolean truncateTail) throws IOException {
+        int records = 0;
+        long validLength = 0;
+        CRC32 replayCrc = new CRC32();
+        byte[] payload = new byte[256];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile), 65536))) {
+            while (true) {
+                int length;
+                int checksum;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    if (length < RECORD_FIELDS_BYTES) {
+                        break;
+                    }
+                    if (payload.length < length) {
+                        payload = new byte[Math.max(length, payload.length * 2)];
+                    }
+                    in.readFully(payload, 0, length);
+                } catch (EOFException e) {
+                    break;
+                }
+                replayCrc.reset();
+                replayCrc.update(payload, 0, length);
+                if ((int) replayCrc.getValue() != checksum) {
+                    break;
+                }
+                ByteBuffer record = ByteBuffer.wrap(payload, 0, length);
+                int partition = record.getInt();
+                int key = record.getInt();
+                int version = record.getInt();
+                String value = new String(payload, RECORD_FIELDS_BYTES, length - RECORD_FIELDS_BYTES,
+                        StandardCharsets.UTF_8);
+                visitor.visit(partition, key, version, value);
+                validLength += HEADER_BYTES + length;
+                records++;
+            }
+        }
+        if (validLength < logFile.length()) {
+            System.err.println("Corrupt WAL tail in " + logFile + " at byte " + validLength);
+            if (truncateTail) {
+                try (RandomAccessFile file = new RandomAccessFile(logFile, "rw")) {
+                    file.setLength(validLength);
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Opens the newest generation for appending, or minGeneration if that is
+     * newer, and starts the group commit flusher when needed.
+     *
+     * @param minGeneration
+     * @throws IOException
+     */
+    public void open(long minGeneration) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create WAL directory " + directory);
+        }
+        List<Long> generations = listGenerations();
+        long newest = generations.isEmpty() ? 0 : generations.get(generations.size() - 1);
+        openGeneration(Math.max(newest, minGeneration));
+        open = true;
+        if (syncPolicy == SyncPolicy.GROUP) {
+            flusherThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runFlusher();
+                }
+            }, "wal-flusher");
+            flusherThread.setDaemon(true);
+            flusherThread.start();
+        }
+        System.out.println("WAL open at " + generationFile(generation) + " with sync policy " + syncPolicy);
+    }
+
+    /**
+     * Writes out everything pending and switches appends to a new generation
+     * file. Records appended before the roll are all in older generations.
+     *
+     * @return the new generation number
+     * @throws IOException
+     */
+    public long roll() throws IOException {
+        synchronized (flushLock) {
+            synchronized (this) {
+                writeBatch(swapBatches());
+                channel.force(false);
+                randomAccessFile.close();
+                openGeneration(generation + 1);
+                return generation;
+            }
+        }
+    }
+
+    /**
+     * Deletes every generation older than the given one. Called once a
+     * checkpoint covering those generations is safely on disk.
+     *
+     * @param keepFromGeneration
+     */
+    public void deleteGenerationsBefore(long keepFromGeneration) {
+        for (long olderGeneration : listGenerations()) {
+            if (olderGeneration < keepFromGeneration && !generationFile(olderGeneration).delete()) {
+                System.err.println("Unable to delete WAL generation " + olderGeneration);
+            }
+        }
+    }
+
+    private void openGeneration(long newGeneration) throws IOException {
+        randomAccessFile = new RandomAccessFile(generationFile(newGeneration), "rw");
+        channel = randomAccessFile.getChannel();
+        channel.position(channel.size());
+        generation = newGeneration;
+    }
+
+    private File generationFile(long logGeneration) {
+        return new File(directory, prefix + "-" + logGeneration + ".wal");
+    }
+
+    /**
+     * Returns the generation numbers present on disk in ascending order
+     */
+    private List<Long> listGenerations() {
+        List<Long> generations = new ArrayList<>();
+        String[] names = directory.list();
+        if (names == null) {
+            return generations;
+        }
+        for (String name : names) {
+            if (name.startsWith(prefix + "-") && name.endsWith(".wal")) {
+                try {
+                    generations.add(Long.parseLong(name.substring(prefix.length() + 1, name.length() - 4)));
+                } catch (NumberFormatException e) {
+                    System.err.println("Ignoring unexpected file in WAL directory: " + name);
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    /**
+     * Appends a write to the log
+     *
+     * @param partition
+     * @param key
+     * @param version
+     * @param value
+     * @throws IOException
+     */
+    public void append(int partition, int key, int version, String value) throws IOException {
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        int length = RECORD_FIELDS_BYTES + valueBytes.length;
+        synchronized (this) {
+            if (!open) {
+                throw new IOException("WAL is closed");
+            }
+            ensureCapacity(HEADER_BYTES + length);
+            int recordStart = activeBatch.position();
+            activeBatch.putInt(length).putInt(0).putInt(partition).putInt(key).putInt(version).put(valueBytes);
+            crc.reset();
+            crc.update(activeBatch.array(), activeBatch.arrayOffset() + recordStart + HEADER_BYTES, length);
+            activeBatch.putInt(recordStart + 4, (int) crc.getValue());
+            pendingRecords++;
+
+            if (syncPolicy != SyncPolicy.GROUP) {
+                writeActiveBatch(syncPolicy == SyncPolicy.ALWAYS);
+            } else if (pendingRecords >= groupCommitRecords) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Writes and forces everything appended so far
+     *
+     * @throws IOException
+     */
+    public void sync() throws IOException {
+        synchronized (flushLock) {
+            ByteBuffer batch;
+            synchronized (this) {
+                if (channel == null) {
+                    return;
+                }
+                batch = swapBatches();
+            }
+            writeBatch(batch);
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Flushes pending records and closes the log file
+     */
+    public void close() {
+        try {
+            sync();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        synchronized (this) {
+            open = false;
+            notifyAll();
+        }
+        try {
+            if (randomAccessFile != null) {
+                randomAccessFile.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Group commit loop. Sleeps until the commit interval has elapsed or enough
+     * records are pending, then writes the batch and forces it outside the
+     * append lock.
+     */
+    private void runFlusher() {
+        while (open) {
+            try {
+                synchronized (this) {
+                    long deadline = System.currentTimeMillis() + groupCommitMillis;
+                    long remaining = groupCommitMillis;
+                    while (open && pendingRecords < groupCommitRecords && remaining > 0) {
+                        wait(remaining);
+                        remaining = deadline - System.currentTimeMillis();
+                    }
+                    if (pendingRecords == 0) {
+                        continue;
+                    }
+                }
+                sync();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException e) {
+                if (open) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands the active batch to the caller and starts a fresh one. Caller holds
+     * the monitor of this log.
+     */
+    private ByteBuffer swapBatches() {
+        ByteBuffer batch = activeBatch;
+        activeBatch = flushingBatch;
+        activeBatch.clear();
+        flushingBatch = batch;
+        pendingRecords = 0;
+        batch.flip();
+        return batch;
+    }
+
+    private void writeActiveBatch(boolean force) throws IOException {
+        activeBatch.flip();
+        writeBatch(activeBatch);
+        activeBatch.clear();
+        pendingRecords = 0;
+        if (force) {
+            channel.force(false);
+        }
+    }
+
+    private void writeBatch(ByteBuffer batch) throws IOException {
+        while (batch.hasRemaining()) {
+            channel.write(batch);
+        }
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (activeBatch.remaining() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(activeBatch.capacity() * 2, activeBatch.position() + bytes));
+            activeBatch.flip();
+            larger.put(activeBatch);
+            activeBatch = larger;
+        }
+    }
+}
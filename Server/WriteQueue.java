@@ -1,50 +1,105 @@
 package Server;
 
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * Client writes waiting to be applied at the head of their chain. Every
+ * primary partition (the node number of a write) has its own queue, drained by
+ * its own Worker, so writes to different partitions are applied in parallel
+ * while the writes of one partition keep their order. The queues are
+ * WriteReorderBuffers, releasing the writes of a partition in the order of
+ * their sequence numbers. Each holds at most writeQueueCapacity writes; further
+ * writes are refused until the worker catches up.
+ */
 public class WriteQueue {
    
-    protected PriorityBlockingQueue<Message> writeQueue; // Shared message queue
+    protected List<WriteReorderBuffer> partitionQueues; // One queue per partition
 
-    public WriteQueue() {
-        this.writeQueue = new PriorityBlockingQueue<Message>(500, new WriteComparator());;
+    public WriteQueue(int partitions) {
+        int slots = ConnectionContext.getServerProperty("writeReorderSlots", 1024);
+        int capacity = ConnectionContext.getServerProperty("writeQueueCapacity", 512);
+        int gapTimeoutMillis = ConnectionContext.getServerProperty("writeGapTimeoutMillis", 50);
+        this.partitionQueues = new ArrayList<>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            partitionQueues.add(new WriteReorderBuffer(slots, capacity, gapTimeoutMillis));
+        }
     }
 
     /**
-     * Utility process to adds messages received to the common priority queue. The
-     * priority queue is blocking to ensure thread safety.
+     * Utility process to adds messages received to the queue of their
+     * partition, at the slot of their sequence number.
      * 
      * @param message
+     * @return QUEUED, BUSY if the partition is full or LATE if the turn of the
+     *         write has passed
      */
-    public void addMessageToQueue(Message message) {
-        writeQueue.add(message);
+    public WriteReorderBuffer.Admission addMessageToQueue(Message message) {
+        return partitionQueues.get(message.getNodeNumber()).offer(message);
     }
 
     /**
-     * Utility method to poll the message queue
+     * Takes the next write of a partition, waiting for one to arrive
      * 
+     * @param partition
      * @return Message
+     * @throws InterruptedException
      */
-    public Message pollWriteQueue() {
-        return writeQueue.poll();
+    public Message takeWriteQueue(int partition) throws InterruptedException {
+        return partitionQueues.get(partition).take();
     }
 
     /**
-     * Utility method to peek at the message queue
+     * Utility method to check if the next write of a partition is ready
      * 
-     * @return Message
+     * @param partition
+     * @return boolean
      */
-    public Message peekWriteQueue() {
-        return writeQueue.peek();
+    public boolean hasReadyWrite(int partition) {
+        return partitionQueues.get(partition).hasReady();
     }
 
     /**
-     * Utility method to check if the message queue is empty
+     * Utility method to check if all the queues are empty
      * 
      * @return boolean
      */
     public boolean isWriteQueueEmpty() {
-        return writeQueue.isEmpty();
+        for (WriteReorderBuffer partitionQueue : partitionQueues) {
+            if (!partitionQueue.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getPartitionCount() {
+        return partitionQueues.size();
+    }
+
+    /**
+     * Writes of a partition waiting to be applied
+     *
+     * @param partition
+     * @return
+     */
+    public int getDepth(int partition) {
+        return partitionQueues.get(partition).size();
+    }
+
+    /**
+     * Depth, admitted and refused writes of every partition
+     *
+     * @return
+     */
+    public String getStats() {
+        StringBuilder stats = new StringBuilder("Write queues:");
+        for (int i = 0; i < partitionQueues.size(); i++) {
+            WriteReorderBuffer partitionQueue = partitionQueues.get(i);
+            stats.append(String.format("%n  partition %d: depth %d, %d admitted, %d refused", i,
+                    partitionQueue.size(), partitionQueue.getAdmitted(), partitionQueue.getRejected()));
+        }
+        return stats.toString();
     }
 
 }
@@ -0,0 +1,189 @@
+package Server;
+
+/**
+ * Reorders the client writes of one partition by sequence number. Every write
+ * is placed in the slot of its sequence number in a ring of writeReorderSlots
+ * slots and the worker takes contiguous runs starting at the next expected
+ * number, so writes are applied in sequence order even if they arrive out of
+ * order. Adding and taking a write is O(1).
+ *
+ * The sequencer numbers the writes of each partition from 1, one sequence for
+ * all clients. A write found in the slot of its number is acknowledged only if
+ * it is the same write sent again, any other is refused. When a number is missing
+ * while later ones wait, the worker waits for it at most writeGapTimeoutMillis
+ * and then skips the gap, so a node that takes over a chain mid-sequence pays
+ * the timeout once. A write numbered below the expected number arrived after
+ * its turn was released or skipped, for example a busy write retried after the
+ * gap timeout. Newer writes may already have been applied over it, so it is
+ * refused as LATE and never applied.
+ *
+ * Admission is bounded: a write is refused as BUSY while writeQueueCapacity
+ * writes of the partition wait to be applied, or when it is too far ahead for
+ * the ring while the ring holds writes. It moves the ring forward if it holds
+ * nothing. Busy writes are retried by the client. Every refusal is counted.
+ */
+public class WriteReorderBuffer {
+    /**
+     * Outcome of offering a write
+     */
+    public enum Admission {
+        QUEUED, BUSY, LATE
+    }
+
+    private final Message[] slots;
+    private final int mask;
+    private final int maxQueued;
+    private final long gapTimeoutNanos;
+    // Next sequence number to release
+    private long nextSeq = 1;
+    private int buffered;
+    private long gapSince;
+    private long admitted;
+    private long rejected;
+
+    /**
+     * @param capacity        slots in the ring, rounded up to a power of two
+     * @param maxQueued       most writes waiting to be applied
+     * @param gapTimeoutMillis
+     */
+    public WriteReorderBuffer(int capacity, int maxQueued, long gapTimeoutMillis) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.slots = new Message[size];
+        this.mask = size - 1;
+        this.maxQueued = Math.max(1, maxQueued);
+        this.gapTimeoutNanos = gapTimeoutMillis * 1000000L;
+    }
+
+    /**
+     * Places a write at its sequence slot unless the partition is full
+     *
+     * @param message
+     * @return QUEUED if the write is waiting in its slot
+     */
+    public synchronized Admission offer(Message message) {
+        long seq = message.getMessageOrderNo();
+        if (seq < nextSeq) {
+            System.out.println(String.format("Write %d arrived after writes up to %d were released, refused", seq,
+                    nextSeq - 1));
+            rejected++;
+            return Admission.LATE;
+        }
+        if (buffered >= maxQueued) {
+            rejected++;
+            return Admission.BUSY;
+        }
+        if (seq - nextSeq >= slots.length) {
+            if (buffered > 0) {
+                // Too far ahead, the worker has to catch up or skip a gap first
+                rejected++;
+                return Admission.BUSY;
+            }
+            System.out.println(String.format("Writes %d to %d not received, skipped", nextSeq, seq - 1));
+            nextSeq = seq;
+        }
+        int slot = (int) (seq & mask);
+        if (slots[slot] != null) {
+            if (slots[slot].getMessageContent().equals(message.getMessageContent())) {
+                // The same write sent again, it is already waiting
+                System.out.println("Duplicate write " + seq + " ignored");
+                return Admission.QUEUED;
+            }
+            // Another write with the same number, refused rather than dropped
+            System.out.println("Write " + seq + " conflicts with a waiting write, refused");
+            rejected++;
+            return Admission.BUSY;
+        }
+        admitted++;
+        slots[slot] = message;
+        buffered++;
+        notifyAll();
+        return Admission.QUEUED;
+    }
+
+    /**
+     * Takes the next write in sequence order, waiting for it to arrive
+     *
+     * @return
+     * @throws InterruptedException
+     */
+    public synchronized Message take() throws InterruptedException {
+        while (true) {
+            Message message = poll();
+            if (message != null) {
+                return message;
+            }
+            if (buffered == 0) {
+                gapSince = 0;
+                wait();
+                continue;
+            }
+            // Later writes are waiting on a missing one
+            long now = System.nanoTime();
+            if (gapSince == 0) {
+                gapSince = now;
+            }
+            long remaining = gapSince + gapTimeoutNanos - now;
+            if (remaining <= 0) {
+                skipGap();
+            } else {
+                wait(Math.max(1, remaining / 1000000L));
+            }
+        }
+    }
+
+    /**
+     * True if a write can be taken right away
+     *
+     * @return
+     */
+    public synchronized boolean hasReady() {
+        return buffered > 0 && slots[(int) (nextSeq & mask)] != null;
+    }
+
+    public synchronized boolean isEmpty() {
+        return buffered == 0;
+    }
+
+    /**
+     * Writes waiting to be applied
+     *
+     * @return
+     */
+    public synchronized int size() {
+        return buffered;
+    }
+
+    public synchronized long getAdmitted() {
+        return admitted;
+    }
+
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    private Message poll() {
+        if (buffered == 0) {
+            return null;
+        }
+        int slot = (int) (nextSeq & mask);
+        Message message = slots[slot];
+        if (message == null) {
+            return null;
+        }
+        slots[slot] = null;
+        buffered--;
+        nextSeq++;
+        gapSince = 0;
+        return message;
+    }
+
+    private void skipGap() {
+        long skipped = 0;
+        while (slots[(int) (nextSeq & mask)] == null) {
+            nextSeq++;
+            skipped++;
+        }
+        System.out.println(String.format("Gap of %d writes not received in time, skipped to %d", skipped, nextSeq));
+        gapSince = 0;
+    }
+}